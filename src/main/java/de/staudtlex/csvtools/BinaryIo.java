@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.staudtlex.csvtools;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Provides methods to read and write the primitive values used by the binary
+ * file formats of this package.
+ * <p>
+ * Non-negative integers are written as variable-length quantities (seven bits
+ * per byte, least significant group first), strings as a variable-length byte
+ * count followed by their UTF-8 encoding.
+ */
+final class BinaryIo {
+
+  private BinaryIo() {
+  }
+
+  /**
+   * Writes a non-negative integer as variable-length quantity.
+   *
+   * @param out   the output to write to
+   * @param value the value to write
+   * @throws IOException              if an I/O error occurs
+   * @throws IllegalArgumentException if {@code value} is negative
+   */
+  static void writeVarLong(final DataOutput out, long value)
+      throws IOException {
+    if (value < 0) {
+      throw new IllegalArgumentException("Negative value: " + value);
+    }
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  /**
+   * Returns the number of bytes written by
+   * {@link #writeVarLong(DataOutput, long)} for a non-negative integer.
+   *
+   * @param value the value
+   * @return the number of bytes
+   */
+  static int varLongLength(long value) {
+    int length = 1;
+    while ((value & ~0x7FL) != 0) {
+      length++;
+      value >>>= 7;
+    }
+    return length;
+  }
+
+  /**
+   * Reads a non-negative integer written by
+   * {@link #writeVarLong(DataOutput, long)}.
+   *
+   * @param in the input to read from
+   * @return the value read
+   * @throws IOException if an I/O error occurs or the value is malformed
+   */
+  static long readVarLong(final DataInput in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable-length quantity");
+  }
+
+  /**
+   * Reads a non-negative integer written by
+   * {@link #writeVarLong(DataOutput, long)}, checking that it fits into an
+   * {@code int}.
+   *
+   * @param in the input to read from
+   * @return the value read
+   * @throws IOException if an I/O error occurs or the value is malformed
+   */
+  static int readVarInt(final DataInput in) throws IOException {
+    final long value = readVarLong(in);
+    if (value > Integer.MAX_VALUE) {
+      throw new IOException("Value out of range: " + value);
+    }
+    return (int) value;
+  }
+
+  /**
+   * Writes a string as byte count followed by its UTF-8 encoding.
+   *
+   * @param out   the output to write to
+   * @param value the string to write
+   * @throws IOException if an I/O error occurs
+   */
+  static void writeString(final DataOutput out, final String value)
+      throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString(DataOutput, String)}.
+   *
+   * @param in the input to read from
+   * @return the string read
+   * @throws IOException if an I/O error occurs
+   */
+  static String readString(final DataInput in) throws IOException {
+    final byte[] bytes = new byte[readVarInt(in)];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the number of bytes required to encode a range of characters as
+   * UTF-8.
+   *
+   * @param chars the characters
+   * @param start the index of the first character (inclusive)
+   * @param end   the index of the last character (exclusive)
+   * @return the number of UTF-8 bytes
+   */
+  static long utf8Length(final CharSequence chars, final int start,
+      final int end) {
+    long length = 0;
+    for (int i = start; i < end; i++) {
+      final char c = chars.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < end
+          && Character.isLowSurrogate(chars.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        // includes unpaired surrogates, which are encoded as '?'
+        length += Character.isSurrogate(c) ? 1 : 3;
+      }
+    }
+    return length;
+  }
+
+}
@@ -0,0 +1,561 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.staudtlex.csvtools;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides a compact binary columnar file format for combined CSV data.
+ * <p>
+ * Records are stored in row groups. Within a row group, the values of each
+ * column are stored contiguously (a column chunk), either as run-length encoded
+ * plain values or as a dictionary followed by run-length encoded dictionary
+ * indices, whichever is smaller. A footer at the end of the file contains the
+ * column names and the offset of each column chunk, so that readers may read
+ * selected columns only.
+ * <p>
+ * File layout:
+ *
+ * <pre>
+ * magic, version
+ * column chunk (row group 1, column 1)
+ * ...
+ * column chunk (row group n, column m)
+ * footer: column names, per row group: row count and column chunk offsets
+ * footer length, magic
+ * </pre>
+ */
+public class ColumnarCsv {
+  private static final int MAGIC = 0x43535643; // "CSVC"
+  private static final int VERSION = 1;
+  private static final int HEADER_LENGTH = 8;
+  private static final int TRAILER_LENGTH = 8;
+
+  private static final byte ENCODING_PLAIN = 0;
+  private static final byte ENCODING_DICTIONARY = 1;
+
+  /**
+   * The default number of rows per row group.
+   */
+  public static final int DEFAULT_ROW_GROUP_SIZE = 65536;
+
+  private ColumnarCsv() {
+  }
+
+  /**
+   * Writes records to a columnar file.
+   *
+   * @param path    the path of the columnar file
+   * @param keys    the records' keys (column names)
+   * @param records the records to be written
+   * @throws IOException if an I/O error occurs
+   */
+  public static void write(final Path path, final List<String> keys,
+      final Iterable<? extends Map<String, String>> records)
+      throws IOException {
+    try (Writer writer = new Writer(path, keys)) {
+      for (final Map<String, String> record : records) {
+        writer.write(record);
+      }
+    }
+  }
+
+  /**
+   * Encodes a column chunk, choosing the smaller of the plain and the
+   * dictionary encoding. Runs and the dictionary are collected first, so that
+   * the size of either encoding is known before the chosen one is written.
+   */
+  private static byte[] encodeColumn(final List<String> values)
+      throws IOException {
+    final List<String> dictionary = new ArrayList<>();
+    final int[] dictionaryLengths = new int[values.size()];
+    final Map<String, Integer> dictionaryIndex = new HashMap<>();
+    final int[] runLengths = new int[values.size()];
+    final int[] runIndices = new int[values.size()];
+    int runs = 0;
+    // both encodings start with their encoding byte
+    long plainSize = 1;
+    long dictionarySize = 1;
+
+    int start = 0;
+    while (start < values.size()) {
+      final String value = values.get(start);
+      int end = start + 1;
+      while (end < values.size() && values.get(end).equals(value)) {
+        end++;
+      }
+      Integer index = dictionaryIndex.get(value);
+      if (index == null) {
+        index = dictionary.size();
+        final long length = BinaryIo.utf8Length(value, 0, value.length());
+        dictionaryLengths[index] = (int) length;
+        dictionary.add(value);
+        dictionaryIndex.put(value, index);
+        dictionarySize += BinaryIo.varLongLength(length) + length;
+      }
+      final int valueLength = dictionaryLengths[index];
+      final int runLengthSize = BinaryIo.varLongLength(end - start);
+      plainSize += runLengthSize + BinaryIo.varLongLength(valueLength)
+          + valueLength;
+      dictionarySize += runLengthSize + BinaryIo.varLongLength(index);
+      runLengths[runs] = end - start;
+      runIndices[runs] = index;
+      runs++;
+      start = end;
+    }
+    dictionarySize += BinaryIo.varLongLength(dictionary.size());
+
+    final boolean useDictionary = dictionarySize < plainSize;
+    final ByteArrayOutputStream encoded = new ByteArrayOutputStream(
+        (int) Math.min(useDictionary ? dictionarySize : plainSize,
+            Integer.MAX_VALUE - 8));
+    final DataOutputStream out = new DataOutputStream(encoded);
+    if (useDictionary) {
+      out.writeByte(ENCODING_DICTIONARY);
+      BinaryIo.writeVarLong(out, dictionary.size());
+      for (final String value : dictionary) {
+        BinaryIo.writeString(out, value);
+      }
+      for (int i = 0; i < runs; i++) {
+        BinaryIo.writeVarLong(out, runLengths[i]);
+        BinaryIo.writeVarLong(out, runIndices[i]);
+      }
+    } else {
+      out.writeByte(ENCODING_PLAIN);
+      for (int i = 0; i < runs; i++) {
+        BinaryIo.writeVarLong(out, runLengths[i]);
+        BinaryIo.writeString(out, dictionary.get(runIndices[i]));
+      }
+    }
+    return encoded.toByteArray();
+  }
+
+  /**
+   * Decodes a column chunk of {@code rowCount} values.
+   */
+  static List<String> decodeColumn(final byte[] chunk,
+      final int rowCount) throws IOException {
+    final DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(chunk));
+    final List<String> values = new ArrayList<>(rowCount);
+    final byte encoding = in.readByte();
+    if (encoding == ENCODING_PLAIN) {
+      while (values.size() < rowCount) {
+        final long runLength = readRunLength(in, rowCount - values.size());
+        final String value = BinaryIo.readString(in);
+        for (long i = 0; i < runLength; i++) {
+          values.add(value);
+        }
+      }
+    } else if (encoding == ENCODING_DICTIONARY) {
+      final int dictionaryLength = BinaryIo.readVarInt(in);
+      // each dictionary entry takes at least one byte
+      if (dictionaryLength > in.available()) {
+        throw new IOException("Invalid dictionary length: " + dictionaryLength);
+      }
+      final String[] dictionary = new String[dictionaryLength];
+      for (int i = 0; i < dictionary.length; i++) {
+        dictionary[i] = BinaryIo.readString(in);
+      }
+      while (values.size() < rowCount) {
+        final long runLength = readRunLength(in, rowCount - values.size());
+        final int index = BinaryIo.readVarInt(in);
+        if (index >= dictionary.length) {
+          throw new IOException("Dictionary index out of range: " + index);
+        }
+        final String value = dictionary[index];
+        for (long i = 0; i < runLength; i++) {
+          values.add(value);
+        }
+      }
+    } else {
+      throw new IOException("Unknown column encoding: " + encoding);
+    }
+    if (values.size() != rowCount) {
+      throw new IOException("Column chunk contains " + values.size()
+          + " values, expected " + rowCount);
+    }
+    return values;
+  }
+
+  /**
+   * Reads the length of a run, which must cover at least one and at most
+   * {@code remaining} values, so that corrupt chunks cannot stall or overflow
+   * decoding.
+   */
+  private static long readRunLength(final DataInputStream in,
+      final int remaining) throws IOException {
+    final long runLength = BinaryIo.readVarLong(in);
+    if (runLength < 1 || runLength > remaining) {
+      throw new IOException("Invalid run length: " + runLength);
+    }
+    return runLength;
+  }
+
+  /**
+   * Writes records to a columnar file, buffering one row group at a time.
+   */
+  public static class Writer implements Closeable {
+    private final DataOutputStream out;
+    private final List<String> keys;
+    private final int rowGroupSize;
+    private final List<List<String>> columns;
+    private final List<Integer> rowGroupRowCounts = new ArrayList<>();
+    private final List<long[]> rowGroupOffsets = new ArrayList<>();
+    private long position;
+    private int bufferedRows = 0;
+
+    /**
+     * Creates a Writer using the {@link ColumnarCsv#DEFAULT_ROW_GROUP_SIZE
+     * default row group size}.
+     *
+     * @param path the path of the columnar file
+     * @param keys the records' keys (column names)
+     * @throws IOException if an I/O error occurs
+     */
+    public Writer(final Path path, final List<String> keys) throws IOException {
+      this(path, keys, DEFAULT_ROW_GROUP_SIZE);
+    }
+
+    /**
+     * Creates a Writer.
+     *
+     * @param path         the path of the columnar file
+     * @param keys         the records' keys (column names)
+     * @param rowGroupSize the maximum number of rows per row group
+     * @throws IOException              if an I/O error occurs
+     * @throws IllegalArgumentException if {@code rowGroupSize} is less than 1
+     */
+    public Writer(final Path path, final List<String> keys,
+        final int rowGroupSize) throws IOException {
+      if (rowGroupSize < 1) {
+        throw new IllegalArgumentException(
+            "Row group size must be positive: " + rowGroupSize);
+      }
+      this.keys = new ArrayList<>(keys);
+      this.rowGroupSize = rowGroupSize;
+      this.columns = new ArrayList<>(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        columns.add(new ArrayList<>());
+      }
+      this.out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(path)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      this.position = HEADER_LENGTH;
+    }
+
+    /**
+     * Appends a record. Keys missing from the record are written as empty
+     * values, keys not contained in the Writer's keys are ignored.
+     *
+     * @param record the record to be written
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(final Map<String, String> record) throws IOException {
+      for (int i = 0; i < keys.size(); i++) {
+        final String value = record.get(keys.get(i));
+        columns.get(i).add(value == null ? "" : value);
+      }
+      if (++bufferedRows == rowGroupSize) {
+        flushRowGroup();
+      }
+    }
+
+    private void flushRowGroup() throws IOException {
+      final long[] offsets = new long[keys.size() + 1];
+      for (int i = 0; i < keys.size(); i++) {
+        final byte[] chunk = encodeColumn(columns.get(i));
+        offsets[i] = position;
+        out.write(chunk);
+        position += chunk.length;
+        columns.get(i).clear();
+      }
+      offsets[keys.size()] = position;
+      rowGroupRowCounts.add(bufferedRows);
+      rowGroupOffsets.add(offsets);
+      bufferedRows = 0;
+    }
+
+    /**
+     * Writes the remaining records and the footer, and closes the file.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+      try {
+        if (bufferedRows > 0) {
+          flushRowGroup();
+        }
+        final ByteArrayOutputStream footer = new ByteArrayOutputStream();
+        final DataOutputStream footerOut = new DataOutputStream(footer);
+        BinaryIo.writeVarLong(footerOut, keys.size());
+        for (final String key : keys) {
+          BinaryIo.writeString(footerOut, key);
+        }
+        BinaryIo.writeVarLong(footerOut, rowGroupRowCounts.size());
+        for (int i = 0; i < rowGroupRowCounts.size(); i++) {
+          BinaryIo.writeVarLong(footerOut, rowGroupRowCounts.get(i));
+          // column chunks are contiguous, so store the first offset and the
+          // length of each chunk
+          final long[] offsets = rowGroupOffsets.get(i);
+          BinaryIo.writeVarLong(footerOut, offsets[0]);
+          for (int j = 0; j < keys.size(); j++) {
+            BinaryIo.writeVarLong(footerOut, offsets[j + 1] - offsets[j]);
+          }
+        }
+        footer.writeTo(out);
+        out.writeInt(footer.size());
+        out.writeInt(MAGIC);
+      } finally {
+        out.close();
+      }
+    }
+
+  }
+
+  /**
+   * Reads records, or selected columns only, from a columnar file.
+   */
+  public static class Reader implements Closeable {
+    private final FileChannel channel;
+    private final List<String> keys;
+    private final Map<String, Integer> keyIndex;
+    private final int[] rowGroupRowCounts;
+    private final long[][] rowGroupOffsets;
+    private final long rowCount;
+
+    /**
+     * Opens a columnar file and reads its footer.
+     *
+     * @param path the path of the columnar file
+     * @throws IOException if an I/O error occurs or the file is not a valid
+     *                       columnar file
+     */
+    public Reader(final Path path) throws IOException {
+      this.channel = FileChannel.open(path, StandardOpenOption.READ);
+      try {
+        final long size = channel.size();
+        if (size < HEADER_LENGTH + TRAILER_LENGTH) {
+          throw new IOException("Not a columnar CSV file: " + path);
+        }
+        final ByteBuffer header = read(0, HEADER_LENGTH);
+        final ByteBuffer trailer = read(size - TRAILER_LENGTH, TRAILER_LENGTH);
+        if (header.getInt() != MAGIC || trailer.getInt(4) != MAGIC) {
+          throw new IOException("Not a columnar CSV file: " + path);
+        }
+        final int version = header.getInt();
+        if (version != VERSION) {
+          throw new IOException("Unsupported columnar CSV version: " + version);
+        }
+        final int footerLength = trailer.getInt(0);
+        final long footerStart = size - TRAILER_LENGTH - footerLength;
+        if (footerLength < 0 || footerStart < HEADER_LENGTH) {
+          throw new IOException("Invalid footer length: " + footerLength);
+        }
+        final ByteBuffer footer = read(footerStart, footerLength);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+            footer.array(), footer.arrayOffset(), footerLength));
+
+        // each column name takes at least one byte
+        final int columnCount = BinaryIo.readVarInt(in);
+        if (columnCount > in.available()) {
+          throw new IOException("Invalid column count: " + columnCount);
+        }
+        final List<String> keys = new ArrayList<>(columnCount);
+        this.keyIndex = new HashMap<>(columnCount);
+        for (int i = 0; i < columnCount; i++) {
+          final String key = BinaryIo.readString(in);
+          keys.add(key);
+          keyIndex.put(key, i);
+        }
+        this.keys = Collections.unmodifiableList(keys);
+
+        // each row group takes at least one byte for its row count, its first
+        // offset and each chunk length
+        final int rowGroupCount = BinaryIo.readVarInt(in);
+        if (rowGroupCount > in.available() / (columnCount + 2L)) {
+          throw new IOException("Invalid row group count: " + rowGroupCount);
+        }
+        this.rowGroupRowCounts = new int[rowGroupCount];
+        this.rowGroupOffsets = new long[rowGroupCount][columnCount + 1];
+        long rows = 0;
+        for (int i = 0; i < rowGroupCount; i++) {
+          rowGroupRowCounts[i] = BinaryIo.readVarInt(in);
+          rows += rowGroupRowCounts[i];
+          rowGroupOffsets[i][0] = BinaryIo.readVarLong(in);
+          if (rowGroupOffsets[i][0] < HEADER_LENGTH
+              || rowGroupOffsets[i][0] > footerStart) {
+            throw new IOException(
+                "Invalid column chunk offset: " + rowGroupOffsets[i][0]);
+          }
+          for (int j = 0; j < columnCount; j++) {
+            final long length = BinaryIo.readVarLong(in);
+            if (length < 0 || length > footerStart - rowGroupOffsets[i][j]) {
+              throw new IOException("Invalid column chunk length: " + length);
+            }
+            rowGroupOffsets[i][j + 1] = rowGroupOffsets[i][j] + length;
+          }
+        }
+        this.rowCount = rows;
+      } catch (final IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    /**
+     * @return the column names, as written by the combine
+     */
+    public List<String> getKeys() {
+      return keys;
+    }
+
+    /**
+     * @return the number of records in the file
+     */
+    public long getRowCount() {
+      return rowCount;
+    }
+
+    /**
+     * @return the number of row groups in the file
+     */
+    public int getRowGroupCount() {
+      return rowGroupRowCounts.length;
+    }
+
+    /**
+     * Reads all values of a single column.
+     *
+     * @param key the column name
+     * @return the column's values, in record order
+     * @throws IOException              if an I/O error occurs
+     * @throws IllegalArgumentException if the file does not contain the column
+     */
+    public List<String> readColumn(final String key) throws IOException {
+      final int column = columnIndex(key);
+      final List<String> values = new ArrayList<>();
+      for (int i = 0; i < rowGroupRowCounts.length; i++) {
+        values.addAll(readColumnChunk(i, column));
+      }
+      return values;
+    }
+
+    /**
+     * Reads all records, restricted to the specified columns. Column chunks of
+     * other columns are skipped.
+     *
+     * @param selectedKeys the names of the columns to be read; the records'
+     *                       keys appear in this order
+     * @return the records as {@code List<LinkedHashMap<String, String>>}
+     * @throws IOException              if an I/O error occurs
+     * @throws IllegalArgumentException if the file does not contain one of the
+     *                                    columns
+     */
+    public List<LinkedHashMap<String, String>> scan(
+        final List<String> selectedKeys) throws IOException {
+      final int[] columns = new int[selectedKeys.size()];
+      for (int j = 0; j < columns.length; j++) {
+        columns[j] = columnIndex(selectedKeys.get(j));
+      }
+      final List<LinkedHashMap<String, String>> records = new ArrayList<>();
+      for (int i = 0; i < rowGroupRowCounts.length; i++) {
+        final List<List<String>> chunks = new ArrayList<>(columns.length);
+        for (final int column : columns) {
+          chunks.add(readColumnChunk(i, column));
+        }
+        for (int row = 0; row < rowGroupRowCounts[i]; row++) {
+          final LinkedHashMap<String, String> record = new LinkedHashMap<>();
+          for (int j = 0; j < columns.length; j++) {
+            record.put(selectedKeys.get(j), chunks.get(j).get(row));
+          }
+          records.add(record);
+        }
+      }
+      return records;
+    }
+
+    /**
+     * Reads all records with all columns.
+     *
+     * @return the records as {@code List<LinkedHashMap<String, String>>}
+     * @throws IOException if an I/O error occurs
+     * @see #scan(List)
+     */
+    public List<LinkedHashMap<String, String>> readAll() throws IOException {
+      return scan(keys);
+    }
+
+    private int columnIndex(final String key) {
+      final Integer column = keyIndex.get(key);
+      if (column == null) {
+        throw new IllegalArgumentException("Unknown column: " + key);
+      }
+      return column;
+    }
+
+    private List<String> readColumnChunk(final int rowGroup, final int column)
+        throws IOException {
+      final long offset = rowGroupOffsets[rowGroup][column];
+      final long length = rowGroupOffsets[rowGroup][column + 1] - offset;
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Column chunk too large: " + length);
+      }
+      return decodeColumn(read(offset, (int) length).array(),
+          rowGroupRowCounts[rowGroup]);
+    }
+
+    private ByteBuffer read(final long offset, final int length)
+        throws IOException {
+      final ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, offset + buffer.position()) < 0) {
+          throw new EOFException();
+        }
+      }
+      buffer.flip();
+      return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+
+  }
+
+}
@@ -16,20 +16,31 @@
  */
 package de.staudtlex.csvtools;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.Reader;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -56,6 +67,27 @@ import org.apache.commons.csv.CSVRecord;
  */
 public class CombineCsv {
 
+  /**
+   * The format of the CSV input files. The header is read from the first
+   * record of each file.
+   */
+  private static final CSVFormat INPUT_FORMAT = CSVFormat.Builder.create()
+      .setHeader().setSkipHeaderRecord(true).setDelimiter(';')
+      .setTrailingDelimiter(true).setAllowMissingColumnNames(false)
+      .setAllowDuplicateHeaderNames(true).setTrim(true).setQuote('"').build();
+
+  /**
+   * The suffix appended to duplicated header names of a CSV file.
+   */
+  private static final String DUPLICATE_SUFFIX = "__duplicated_";
+
+  /**
+   * The approximate heap size of imported and rearranged records per byte of
+   * CSV input. When combining within a memory budget, files are imported in
+   * windows of about the budget divided by this number of bytes.
+   */
+  private static final long HEAP_BYTES_PER_INPUT_BYTE = 32;
+
   /**
    * Returns a list of files found in {@code dirOrFilePath}.
    * 
@@ -169,13 +201,7 @@ public class CombineCsv {
       final Reader csvFile = Files.newBufferedReader(Paths.get(path),
           StandardCharsets.UTF_8);
 
-      final CSVFormat RawCsvFormat = CSVFormat.Builder.create().setHeader()
-          .setSkipHeaderRecord(true).setDelimiter(';')
-          .setTrailingDelimiter(true).setAllowMissingColumnNames(false)
-          .setAllowDuplicateHeaderNames(true).setTrim(true).setQuote('"')
-          .build();
-
-      final CSVParser rawCsvParser = new CSVParser(csvFile, RawCsvFormat);
+      final CSVParser rawCsvParser = new CSVParser(csvFile, INPUT_FORMAT);
       final List<String> recordKeys = rawCsvParser.getHeaderNames();
       rawCsvParser.close();
 
@@ -201,11 +227,8 @@ public class CombineCsv {
       final Reader csvFile1 = Files.newBufferedReader(Paths.get(path),
           StandardCharsets.UTF_8);
 
-      final CSVFormat myCsvFormat = CSVFormat.Builder.create()
-          .setHeader(keys.toArray(new String[0])).setSkipHeaderRecord(true)
-          .setDelimiter(';').setTrailingDelimiter(true)
-          .setAllowMissingColumnNames(false).setAllowDuplicateHeaderNames(true)
-          .setTrim(true).setQuote('"').build();
+      final CSVFormat myCsvFormat = INPUT_FORMAT.builder()
+          .setHeader(keys.toArray(new String[0])).build();
 
       final CSVParser csvParser = new CSVParser(csvFile1, myCsvFormat);
       final List<CSVRecord> records = csvParser.getRecords();
@@ -267,6 +290,88 @@ public class CombineCsv {
     return new CsvData(records);
   }
 
+  /**
+   * Formats records as semicolon-delimited text with newlines separating each
+   * record, and appends the header and the formatted records to {@code out}.
+   * <p>
+   * If {@code index} is not {@code null}, the UTF-8 byte offset of each record
+   * is recorded in {@code index}.
+   * 
+   * @param keys    the records' keys, printed as header
+   * @param records the records to be printed
+   * @param out     the {@link Appendable} to which the records are appended
+   * @param index   the {@link CsvIndex.Builder} recording the records' byte
+   *                  offsets, or {@code null}
+   * @throws IOException if an I/O error occurs appending to {@code out}
+   */
+  public static void printRecords(final List<String> keys,
+      final Iterable<? extends Map<String, String>> records,
+      final Appendable out, final CsvIndex.Builder index) throws IOException {
+    final CSVFormat outformat = CSVFormat.Builder.create()
+        .setHeader(keys.toArray(new String[0])).setDelimiter(';')
+        .setAllowMissingColumnNames(false).setTrim(true).setQuote('"')
+        .build();
+
+    if (index == null) {
+      // print straight to out; the printer is not closed, as that would close
+      // out as well
+      final CSVPrinter printer = new CSVPrinter(out, outformat);
+      for (final Map<String, String> record : records) {
+        printer.printRecord(record.values());
+      }
+      return;
+    }
+
+    // format each record into a buffer first to determine its length
+    final StringBuilder buffer = new StringBuilder();
+    final CSVPrinter printer = new CSVPrinter(buffer, outformat);
+    long offset = BinaryIo.utf8Length(buffer, 0, buffer.length());
+    out.append(buffer);
+    buffer.setLength(0);
+    for (final Map<String, String> record : records) {
+      index.addRow(offset);
+      printer.printRecord(record.values());
+      offset += BinaryIo.utf8Length(buffer, 0, buffer.length());
+      out.append(buffer);
+      buffer.setLength(0);
+    }
+    printer.close();
+    index.setLength(offset);
+  }
+
+  /**
+   * Parses a size in bytes, optionally followed by one of the (case-insensitive)
+   * binary suffixes {@code k}, {@code m}, or {@code g}, e.g. {@code 512m}.
+   *
+   * @param size the size to be parsed
+   * @return the size in bytes
+   * @throws NumberFormatException if {@code size} is not a valid non-negative
+   *                                 size
+   */
+  public static long parseSize(final String size) {
+    final String trimmed = size.trim().toLowerCase(Locale.ROOT);
+    final int shift;
+    switch (trimmed.isEmpty() ? ' ' : trimmed.charAt(trimmed.length() - 1)) {
+    case 'k':
+      shift = 10;
+      break;
+    case 'm':
+      shift = 20;
+      break;
+    case 'g':
+      shift = 30;
+      break;
+    default:
+      shift = 0;
+    }
+    final long value = Long.parseLong(
+        shift == 0 ? trimmed : trimmed.substring(0, trimmed.length() - 1));
+    if (value < 0 || value > Long.MAX_VALUE >> shift) {
+      throw new NumberFormatException("Invalid size: " + size);
+    }
+    return value << shift;
+  }
+
   /**
    * A data object which contains records and record keys (column names).
    * Provides a method to format and print the records to {@code stdout}.
@@ -317,17 +422,8 @@ public class CombineCsv {
      */
     public String formatRecords() {
       final StringBuilder formattedRecords = new StringBuilder();
-
-      final CSVFormat outformat = CSVFormat.Builder.create()
-          .setHeader(keys.toArray(new String[0])).setDelimiter(';')
-          .setAllowMissingColumnNames(false).setTrim(true).setQuote('"')
-          .build();
-
       try {
-        final CSVPrinter printer = new CSVPrinter(formattedRecords, outformat);
-        printer.printRecords(
-            records.stream().map(e -> e.values()).collect(Collectors.toList()));
-        printer.close();
+        printRecords(keys, records, formattedRecords, null);
       } catch (final IOException e) {
         throw new RuntimeException(e);
       }
@@ -339,7 +435,7 @@ public class CombineCsv {
   /**
    * A data object which contains records and records keys (column names).
    * Instances of {@link ImportedCsvData} directly parse CSV files upon
-   * instantiation.
+   * instantiation, reading header and records in a single pass.
    */
   public static class ImportedCsvData {
     private final File file;
@@ -352,14 +448,66 @@ public class CombineCsv {
      * Creates an ImportedCsvData instance from a CSV file.
      * 
      * @param f the {@link File} from which to read the CSV records
+     * @throws RuntimeException if an I/O error occurs reading the file
      */
     public ImportedCsvData(final File f) {
+      this(f, newReader(f));
+    }
+
+    /**
+     * Creates an ImportedCsvData instance from the contents of a CSV file which
+     * have already been read into memory.
+     * 
+     * @param f       the {@link File} whose contents are passed in
+     * @param content the UTF-8 encoded contents of {@code f}
+     * @throws RuntimeException if there is a problem parsing the contents
+     */
+    public ImportedCsvData(final File f, final byte[] content) {
+      this(f, new ByteArrayInputStream(content));
+    }
+
+    /**
+     * Creates an ImportedCsvData instance from a stream of the contents of a
+     * CSV file. The stream is closed after parsing.
+     * 
+     * @param f       the {@link File} whose contents are passed in
+     * @param content the stream of the UTF-8 encoded contents of {@code f}
+     * @throws RuntimeException if an I/O error occurs reading the stream or
+     *                            there is a problem parsing the contents
+     */
+    public ImportedCsvData(final File f, final InputStream content) {
+      this(f, new InputStreamReader(content, StandardCharsets.UTF_8));
+    }
+
+    private ImportedCsvData(final File f, final Reader csvFile) {
       this.file = f;
       this.filePath = f.getAbsolutePath();
       this.fileName = f.getName();
-      this.keys = makeDistinct(readHeader(this.filePath), "__duplicated_");
-      this.records = parseCsv(this.filePath, this.keys).stream()
-          .map(CSVRecord::toMap).collect(Collectors.toList());
+      try (CSVParser csvParser = new CSVParser(csvFile, INPUT_FORMAT)) {
+        this.keys = makeDistinct(csvParser.getHeaderNames(), DUPLICATE_SUFFIX);
+        // map values to the disambiguated keys by position
+        final String[] keyArray = keys.toArray(new String[0]);
+        final List<Map<String, String>> parsedRecords = new ArrayList<>();
+        for (final CSVRecord record : csvParser) {
+          final int n = Math.min(keyArray.length, record.size());
+          final Map<String, String> map = new LinkedHashMap<>();
+          for (int i = 0; i < n; i++) {
+            map.put(keyArray[i], record.get(i));
+          }
+          parsedRecords.add(map);
+        }
+        this.records = parsedRecords;
+      } catch (final IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private static Reader newReader(final File f) {
+      try {
+        return Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8);
+      } catch (final IOException e) {
+        throw new RuntimeException(e);
+      }
     }
 
     /**
@@ -414,17 +562,29 @@ public class CombineCsv {
     final Options options = new Options();
     options.addOption("r", "reorder", true,
         "Reorder columns according to a comma-separated list of column names. Duplicated column names as well as column names not present in the input files will be ignored");
+    options.addOption("i", "index", true,
+        "Write a binary row-offset index of the combined output to the specified file. Byte offsets refer to the UTF-8 encoded output");
+    options.addOption("n", "index-interval", true,
+        "Number of rows between two entries of the row-offset index (default: 1000)");
+    options.addOption("c", "columnar", true,
+        "Additionally write the combined records to the specified file in a compact binary columnar format");
+    options.addOption("m", "max-memory", true,
+        "Keep at most the specified amount of rearranged records in memory (e.g. 512m), spilling further records to temporary files");
     options.addOption("h", "help", false, "Display this help message");
 
     // Define help
     final HelpFormatter formatter = new HelpFormatter();
-    final String cmdLineSyntax = "combineCsv [-h] [-r <custom-order>] <file-1 file-2 ...>";
+    final String cmdLineSyntax = "combineCsv [-h] [-r <custom-order>] [-i <index-file> [-n <interval>]] [-c <columnar-file>] [-m <size>] <file-1 file-2 ...>";
     final String header = "\nOptions:";
     final String footer = "";
 
     // Parse named options and remaining positional arguments
     final CommandLineParser parser = new DefaultParser();
     String customOrder = "";
+    String indexFile = null;
+    String columnarFile = null;
+    int indexInterval = 1000;
+    long maxMemory = -1;
     Boolean providesCustomOrder = false;
     Boolean requiresHelp = false;
     try {
@@ -437,8 +597,24 @@ public class CombineCsv {
       } else if (providesCustomOrder) {
         customOrder = cmd.getOptionValue("r");
       }
+      if (cmd.hasOption("i")) {
+        indexFile = cmd.getOptionValue("i");
+      }
+      if (cmd.hasOption("c")) {
+        columnarFile = cmd.getOptionValue("c");
+      }
+      if (cmd.hasOption("n")) {
+        indexInterval = Integer.parseInt(cmd.getOptionValue("n"));
+        if (indexInterval < 1) {
+          throw new ParseException(
+              "Index interval must be positive: " + indexInterval);
+        }
+      }
+      if (cmd.hasOption("m")) {
+        maxMemory = parseSize(cmd.getOptionValue("m"));
+      }
       args = cmd.getArgs();
-    } catch (final ParseException e) {
+    } catch (final ParseException | NumberFormatException e) {
       System.err.println(
           "Unable to parse command line options: " + e.getMessage() + "\n");
       formatter.printHelp(cmdLineSyntax, header, options, footer);
@@ -467,13 +643,22 @@ public class CombineCsv {
       System.exit(1);
     }
 
-    // (2) Import CSV data from files
-    final List<ImportedCsvData> csvData = Stream.of(csvFileList).parallel()
-        .map(ImportedCsvData::new).collect(Collectors.toList());
+    // (2) Import CSV data from files. Within a memory budget, only the headers
+    // are read here, and records are imported window by window below
+    final List<ImportedCsvData> csvData;
+    final List<String> keys;
+    if (maxMemory < 0) {
+      csvData = new ImportScheduler().importAll(Arrays.asList(csvFileList));
+      keys = csvData.stream().map(e -> e.getKeys()).flatMap(e -> e.stream())
+          .collect(Collectors.toList());
+    } else {
+      csvData = null;
+      keys = Stream.of(csvFileList)
+          .map(e -> makeDistinct(readHeader(e.getPath()), DUPLICATE_SUFFIX))
+          .flatMap(e -> e.stream()).collect(Collectors.toList());
+    }
 
     // (3) Merge data from each CSV file
-    final List<String> keys = csvData.stream().map(e -> e.getKeys())
-        .flatMap(e -> e.stream()).collect(Collectors.toList());
     final LinkedHashSet<String> distinctKeys = getDistinct(keys);
 
     // - rearrange CSV records according to distinct keys
@@ -489,20 +674,176 @@ public class CombineCsv {
       keyOrderSet = distinctKeys;
     }
 
-    final List<CsvData> rearrangedCsvData = csvData.stream()
-        .map(e -> rearrange(e, keyOrderSet)).collect(Collectors.toList());
+    final List<String> outputKeys = new ArrayList<>(keyOrderSet);
+    final CsvIndex.Builder index = indexFile == null ? null
+        : new CsvIndex.Builder(indexInterval);
+
+    if (maxMemory < 0) {
+      if (index != null) {
+        csvData.forEach(
+            e -> index.addSource(e.getFilePath(), e.getRecords().size()));
+      }
+      final List<CsvData> rearrangedCsvData = csvData.stream()
+          .map(e -> rearrange(e, keyOrderSet)).collect(Collectors.toList());
+
+      // - collect rearranged CSV records in single CsvData
+      final CsvData mergedCsvData = merge(rearrangedCsvData);
+
+      // (4) Print merged CSV records to stdout
+      if (index == null) {
+        final String formattedResults = mergedCsvData.formatRecords();
+        System.out.print(formattedResults);
+      } else {
+        writeRecords(outputKeys, mergedCsvData.getRecords(), index, indexFile);
+      }
+
+      // (5) Write merged CSV records in columnar format
+      writeColumnar(columnarFile, outputKeys, mergedCsvData.getRecords());
+    } else {
+      // - import and rearrange files in file order, one window at a time,
+      // releasing the imported records of each file once rearranged and
+      // spilling rearranged records to disk beyond the memory budget
+      final long windowBytes = Math.max(ImportScheduler.DEFAULT_BATCH_BYTES,
+          maxMemory / HEAP_BYTES_PER_INPUT_BYTE);
+      final ImportScheduler scheduler = new ImportScheduler();
+      try (SpillingCsvData spillingCsvData = new SpillingCsvData(outputKeys,
+          maxMemory)) {
+        for (final List<File> window : createWindows(
+            Arrays.asList(csvFileList), windowBytes)) {
+          final ListIterator<ImportedCsvData> it = scheduler.importAll(window)
+              .listIterator();
+          while (it.hasNext()) {
+            final ImportedCsvData e = it.next();
+            it.set(null);
+            if (index != null) {
+              index.addSource(e.getFilePath(), e.getRecords().size());
+            }
+            spillingCsvData.add(rearrange(e, keyOrderSet).getRecords());
+          }
+        }
 
-    // - collect rearranged CSV records in single CsvData
-    final CsvData mergedCsvData = merge(rearrangedCsvData);
+        // (4) Print merged CSV records to stdout, replaying spilled records
+        writeRecords(outputKeys, spillingCsvData, index, indexFile);
+
+        // (5) Write merged CSV records in columnar format
+        writeColumnar(columnarFile, outputKeys, spillingCsvData);
+      } catch (final IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
 
-    // rearrangedCsvData.forEach(e -> System.out.println(e.getKeys()));
-    // System.out.println();
-    // System.out.println(mergedCsvData.getKeys());
+  }
 
-    // (4) Print merged CSV records to stdout
-    final String formattedResults = mergedCsvData.formatRecords();
-    System.out.print(formattedResults);
+  /**
+   * Groups files, in order, into windows of up to {@code windowBytes} bytes. A
+   * file larger than {@code windowBytes} forms a window of its own.
+   *
+   * @param files       the files to be grouped
+   * @param windowBytes the maximum number of bytes per window
+   * @return the windows, in the order of {@code files}
+   */
+  static List<List<File>> createWindows(final List<File> files,
+      final long windowBytes) {
+    final List<List<File>> windows = new ArrayList<>();
+    List<File> window = new ArrayList<>();
+    long bytes = 0;
+    for (final File file : files) {
+      final long size = file.length();
+      if (!window.isEmpty() && bytes + size > windowBytes) {
+        windows.add(window);
+        window = new ArrayList<>();
+        bytes = 0;
+      }
+      window.add(file);
+      bytes += size;
+    }
+    if (!window.isEmpty()) {
+      windows.add(window);
+    }
+    return windows;
+  }
 
+  /**
+   * Streams records to {@code stdout} and writes the row-offset index, if any.
+   * Output is UTF-8 encoded if indexed, as the index records UTF-8 byte
+   * offsets. Otherwise it is printed through {@code System.out}, and thus
+   * encoded like the output of {@link CsvData#formatRecords()}.
+   */
+  private static void writeRecords(final List<String> keys,
+      final Iterable<? extends Map<String, String>> records,
+      final CsvIndex.Builder index, final String indexFile) {
+    try {
+      if (index == null) {
+        final ChunkedPrinter out = new ChunkedPrinter(System.out);
+        printRecords(keys, records, out, null);
+        out.flush();
+      } else {
+        final Writer out = new BufferedWriter(
+            new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        printRecords(keys, records, out, index);
+        out.flush();
+        index.build().write(Paths.get(indexFile));
+      }
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Collects appended text and prints it to a {@link PrintStream} in chunks,
+   * as printing each record on its own would flush an auto-flushing stream such
+   * as {@code System.out} on every line break.
+   */
+  private static class ChunkedPrinter implements Appendable, Flushable {
+    private static final int CHUNK_SIZE = 1 << 16;
+    private final PrintStream out;
+    private final StringBuilder chunk = new StringBuilder();
+
+    ChunkedPrinter(final PrintStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public Appendable append(final CharSequence csq) {
+      chunk.append(csq);
+      if (chunk.length() >= CHUNK_SIZE) {
+        flush();
+      }
+      return this;
+    }
+
+    @Override
+    public Appendable append(final CharSequence csq, final int start,
+        final int end) {
+      return append(csq.subSequence(start, end));
+    }
+
+    @Override
+    public Appendable append(final char c) {
+      return append(String.valueOf(c));
+    }
+
+    @Override
+    public void flush() {
+      out.print(chunk.toString());
+      chunk.setLength(0);
+    }
+  }
+
+  /**
+   * Writes records in columnar format if {@code columnarFile} is not
+   * {@code null}.
+   */
+  private static void writeColumnar(final String columnarFile,
+      final List<String> keys,
+      final Iterable<? extends Map<String, String>> records) {
+    if (columnarFile != null) {
+      try {
+        ColumnarCsv.write(Paths.get(columnarFile), keys, records);
+      } catch (final IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
   }
 
 }
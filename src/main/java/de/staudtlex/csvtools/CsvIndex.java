@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.staudtlex.csvtools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A row-offset index of a combined CSV file.
+ * <p>
+ * As quoted fields may contain line breaks, a combined CSV file cannot safely
+ * be split at arbitrary newlines. A CsvIndex records the byte offset of every
+ * {@code n}-th record (a checkpoint) as well as the range of records each
+ * source file contributed, so that readers may start parsing at a record
+ * boundary instead of scanning the file from the start.
+ * <p>
+ * Rows are numbered from {@code 0}, not counting the header. Byte offsets
+ * refer to the UTF-8 encoded file.
+ *
+ * @see IndexedCsvReader
+ */
+public class CsvIndex {
+  private static final int MAGIC = 0x43535649; // "CSVI"
+  private static final int VERSION = 1;
+
+  private final int interval;
+  private final long rowCount;
+  private final long dataOffset;
+  private final long length;
+  private final long[] checkpoints;
+  private final List<Source> sources;
+
+  private CsvIndex(final int interval, final long rowCount,
+      final long dataOffset, final long length, final long[] checkpoints,
+      final List<Source> sources) {
+    this.interval = interval;
+    this.rowCount = rowCount;
+    this.dataOffset = dataOffset;
+    this.length = length;
+    this.checkpoints = checkpoints;
+    this.sources = Collections.unmodifiableList(sources);
+  }
+
+  /**
+   * @return the number of rows between two checkpoints
+   */
+  public int getInterval() {
+    return interval;
+  }
+
+  /**
+   * @return the number of rows (excluding the header) of the indexed file
+   */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * @return the byte offset of the first row, that is the length of the header
+   */
+  public long getDataOffset() {
+    return dataOffset;
+  }
+
+  /**
+   * @return the length of the indexed file in bytes
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * @return the source files, in the order in which their rows appear in the
+   *         indexed file
+   */
+  public List<Source> getSources() {
+    return sources;
+  }
+
+  /**
+   * Returns the source file with the specified name.
+   *
+   * @param name the name of the source file, as passed to
+   *               {@link Builder#addSource(String, long)}
+   * @return the source file, or {@code null} if the index contains no source
+   *         file of this name
+   */
+  public Source getSource(final String name) {
+    for (final Source source : sources) {
+      if (source.getName().equals(name)) {
+        return source;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the row of the last checkpoint at or before {@code row}.
+   *
+   * @param row the row number
+   * @return the row number of the checkpoint
+   * @throws IndexOutOfBoundsException if {@code row} is not a valid row number
+   */
+  public long getCheckpointRow(final long row) {
+    if (row < 0 || row >= rowCount) {
+      throw new IndexOutOfBoundsException("Row: " + row + ", rows: " + rowCount);
+    }
+    return row / interval * interval;
+  }
+
+  /**
+   * Returns the byte offset of the last checkpoint at or before {@code row}.
+   *
+   * @param row the row number
+   * @return the byte offset of the checkpoint
+   * @throws IndexOutOfBoundsException if {@code row} is not a valid row number
+   * @see #getCheckpointRow(long)
+   */
+  public long getCheckpointOffset(final long row) {
+    return checkpoints[(int) (getCheckpointRow(row) / interval)];
+  }
+
+  /**
+   * Writes the index to a file.
+   *
+   * @param path the path of the index file
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(final Path path) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(path)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      BinaryIo.writeVarLong(out, interval);
+      BinaryIo.writeVarLong(out, rowCount);
+      BinaryIo.writeVarLong(out, dataOffset);
+      BinaryIo.writeVarLong(out, length);
+      BinaryIo.writeVarLong(out, sources.size());
+      for (final Source source : sources) {
+        BinaryIo.writeString(out, source.getName());
+        BinaryIo.writeVarLong(out, source.getRowCount());
+      }
+      // checkpoints are strictly increasing, so only store the differences
+      BinaryIo.writeVarLong(out, checkpoints.length);
+      long previous = 0;
+      for (final long checkpoint : checkpoints) {
+        BinaryIo.writeVarLong(out, checkpoint - previous);
+        previous = checkpoint;
+      }
+    }
+  }
+
+  /**
+   * Reads an index from a file.
+   *
+   * @param path the path of the index file
+   * @return the index
+   * @throws IOException if an I/O error occurs or the file is not a valid index
+   *                       file
+   */
+  public static CsvIndex read(final Path path) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a CSV index file: " + path);
+      }
+      final int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported CSV index version: " + version);
+      }
+      final int interval = BinaryIo.readVarInt(in);
+      final long rowCount = BinaryIo.readVarLong(in);
+      final long dataOffset = BinaryIo.readVarLong(in);
+      final long length = BinaryIo.readVarLong(in);
+      final int sourceCount = BinaryIo.readVarInt(in);
+      final List<Source> sources = new ArrayList<>(sourceCount);
+      long firstRow = 0;
+      for (int i = 0; i < sourceCount; i++) {
+        final String name = BinaryIo.readString(in);
+        final long sourceRowCount = BinaryIo.readVarLong(in);
+        sources.add(new Source(name, firstRow, sourceRowCount));
+        firstRow += sourceRowCount;
+      }
+      final long[] checkpoints = new long[BinaryIo.readVarInt(in)];
+      long previous = 0;
+      for (int i = 0; i < checkpoints.length; i++) {
+        checkpoints[i] = previous + BinaryIo.readVarLong(in);
+        previous = checkpoints[i];
+      }
+      return new CsvIndex(interval, rowCount, dataOffset, length, checkpoints,
+          sources);
+    }
+  }
+
+  /**
+   * The range of rows a single source file contributed to the indexed file.
+   */
+  public static class Source {
+    private final String name;
+    private final long firstRow;
+    private final long rowCount;
+
+    Source(final String name, final long firstRow, final long rowCount) {
+      this.name = name;
+      this.firstRow = firstRow;
+      this.rowCount = rowCount;
+    }
+
+    /**
+     * @return the source file's name
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the number of the source file's first row in the indexed file
+     */
+    public long getFirstRow() {
+      return firstRow;
+    }
+
+    /**
+     * @return the number of rows the source file contributed
+     */
+    public long getRowCount() {
+      return rowCount;
+    }
+
+  }
+
+  /**
+   * Collects row offsets while a combined CSV file is written and creates the
+   * resulting {@link CsvIndex}.
+   */
+  public static class Builder {
+    private final int interval;
+    private final List<Source> sources = new ArrayList<>();
+    private long[] checkpoints = new long[16];
+    private int checkpointCount = 0;
+    private long sourceRowCount = 0;
+    private long rowCount = 0;
+    private long dataOffset = -1;
+    private long length = 0;
+
+    /**
+     * Creates a Builder recording a checkpoint every {@code interval} rows.
+     *
+     * @param interval the number of rows between two checkpoints
+     * @throws IllegalArgumentException if {@code interval} is less than 1
+     */
+    public Builder(final int interval) {
+      if (interval < 1) {
+        throw new IllegalArgumentException(
+            "Index interval must be positive: " + interval);
+      }
+      this.interval = interval;
+    }
+
+    /**
+     * Adds a source file. Source files must be added in the order in which
+     * their rows are written.
+     *
+     * @param name     the source file's name
+     * @param rowCount the number of rows the source file contributes
+     * @return this Builder
+     */
+    public Builder addSource(final String name, final long rowCount) {
+      sources.add(new Source(name, sourceRowCount, rowCount));
+      sourceRowCount += rowCount;
+      return this;
+    }
+
+    /**
+     * Records the start of the next row.
+     *
+     * @param offset the byte offset at which the row starts
+     * @return this Builder
+     */
+    public Builder addRow(final long offset) {
+      if (dataOffset < 0) {
+        dataOffset = offset;
+      }
+      if (rowCount % interval == 0) {
+        if (checkpointCount == checkpoints.length) {
+          checkpoints = Arrays.copyOf(checkpoints, checkpointCount * 2);
+        }
+        checkpoints[checkpointCount++] = offset;
+      }
+      rowCount++;
+      return this;
+    }
+
+    /**
+     * Records the end of the indexed file.
+     *
+     * @param length the length of the indexed file in bytes
+     * @return this Builder
+     */
+    public Builder setLength(final long length) {
+      this.length = length;
+      return this;
+    }
+
+    /**
+     * @return the {@link CsvIndex}
+     * @throws IllegalStateException if the rows of the source files do not add
+     *                                 up to the number of rows recorded
+     */
+    public CsvIndex build() {
+      if (!sources.isEmpty() && sourceRowCount != rowCount) {
+        throw new IllegalStateException("Source files contain " + sourceRowCount
+            + " rows, but " + rowCount + " rows were recorded");
+      }
+      return new CsvIndex(interval, rowCount,
+          dataOffset < 0 ? length : dataOffset, length,
+          Arrays.copyOf(checkpoints, checkpointCount),
+          new ArrayList<>(sources));
+    }
+
+  }
+
+}
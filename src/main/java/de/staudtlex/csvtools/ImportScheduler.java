@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.staudtlex.csvtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import de.staudtlex.csvtools.CombineCsv.ImportedCsvData;
+
+/**
+ * Imports CSV files, separating blocking file reads from parsing.
+ * <p>
+ * Files are sorted by size (largest first) and grouped into batches: files
+ * smaller than the batch size are combined into a single task until the batch
+ * size is reached, so that directories with thousands of tiny files do not
+ * incur per-file task overhead. The contents of upcoming batches are read
+ * ahead on a dedicated I/O executor while parsing runs on the CPU executor.
+ * The number of bytes of the batches being read or parsed at the same time is
+ * bounded, which bounds the memory held by prefetched file contents without
+ * limiting the number of concurrent reads of small files.
+ * <p>
+ * Each small file, and each chunk of a large file, is read by a task of its
+ * own. On Java 21 and later, these tasks run on virtual threads (see
+ * {@code IoExecutors}).
+ * <p>
+ * Files at least as large as the batch size form a batch of their own. Rather
+ * than being read into memory as a whole, they are streamed to the parser
+ * through a {@code PrefetchingInputStream}, which reads a bounded number of
+ * chunks ahead on the I/O executor. Thus blocking reads never run on the CPU
+ * executor, whatever the file size.
+ */
+public class ImportScheduler {
+
+  /**
+   * The default batch size in bytes.
+   */
+  public static final long DEFAULT_BATCH_BYTES = 1L << 20;
+
+  /**
+   * The default maximum number of files per batch.
+   */
+  public static final int DEFAULT_MAX_BATCH_FILES = 256;
+
+  /**
+   * The default number of bytes of the batches being read or parsed at the
+   * same time.
+   */
+  public static final long DEFAULT_PREFETCH_BYTES = 64L << 20;
+
+  private final int ioThreads;
+  private final long prefetchBytes;
+  private final long batchBytes;
+  private final int maxBatchFiles;
+  private final Executor cpuExecutor;
+
+  /**
+   * Creates an ImportScheduler with default settings, parsing on the common
+   * {@link ForkJoinPool}.
+   */
+  public ImportScheduler() {
+    this(Math.max(4, Runtime.getRuntime().availableProcessors()),
+        DEFAULT_PREFETCH_BYTES, DEFAULT_BATCH_BYTES, DEFAULT_MAX_BATCH_FILES,
+        ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates an ImportScheduler.
+   *
+   * @param ioThreads       the number of threads reading files (ignored when
+   *                          reading on virtual threads)
+   * @param prefetchBytes   the maximum number of bytes of the batches being
+   *                          read or parsed at the same time. A batch larger
+   *                          than this is read and parsed on its own
+   * @param batchBytes      the number of bytes up to which small files are
+   *                          combined into a single batch
+   * @param maxBatchFiles   the maximum number of files per batch
+   * @param cpuExecutor     the executor on which files are parsed
+   * @throws IllegalArgumentException if one of the numeric arguments is less
+   *                                    than 1
+   */
+  public ImportScheduler(final int ioThreads, final long prefetchBytes,
+      final long batchBytes, final int maxBatchFiles,
+      final Executor cpuExecutor) {
+    if (ioThreads < 1 || prefetchBytes < 1 || batchBytes < 1
+        || maxBatchFiles < 1) {
+      throw new IllegalArgumentException(
+          "Scheduler settings must be positive");
+    }
+    this.ioThreads = ioThreads;
+    this.prefetchBytes = prefetchBytes;
+    this.batchBytes = batchBytes;
+    this.maxBatchFiles = maxBatchFiles;
+    this.cpuExecutor = cpuExecutor;
+  }
+
+  /**
+   * Groups files into batches.
+   *
+   * @param sizes         the file sizes in bytes
+   * @param batchBytes    the number of bytes up to which files are combined
+   *                        into a single batch
+   * @param maxBatchFiles the maximum number of files per batch
+   * @return the batches, each containing the indices of its files in
+   *         {@code sizes}, ordered by decreasing file size
+   */
+  static List<int[]> createBatches(final long[] sizes, final long batchBytes,
+      final int maxBatchFiles) {
+    final List<Integer> order = IntStream.range(0, sizes.length).boxed()
+        .sorted(Comparator.comparingLong((Integer i) -> sizes[i]).reversed())
+        .collect(Collectors.toList());
+    final List<int[]> batches = new ArrayList<>();
+    final List<Integer> batch = new ArrayList<>();
+    long bytes = 0;
+    for (final int i : order) {
+      batch.add(i);
+      bytes += sizes[i];
+      if (bytes >= batchBytes || batch.size() == maxBatchFiles) {
+        batches.add(batch.stream().mapToInt(e -> e).toArray());
+        batch.clear();
+        bytes = 0;
+      }
+    }
+    if (!batch.isEmpty()) {
+      batches.add(batch.stream().mapToInt(e -> e).toArray());
+    }
+    return batches;
+  }
+
+  /**
+   * Imports CSV files.
+   *
+   * @param files the CSV files to be imported
+   * @return the {@link ImportedCsvData} of each file, in the order of
+   *         {@code files}
+   * @throws RuntimeException if an I/O error occurs reading one of the files
+   */
+  public List<ImportedCsvData> importAll(final List<File> files) {
+    final long[] sizes = files.stream().mapToLong(File::length).toArray();
+    final ImportedCsvData[] results = new ImportedCsvData[files.size()];
+    // permits are KiB of batches in flight
+    final int budget = (int) Math.min(Integer.MAX_VALUE,
+        Math.max(1, prefetchBytes >> 10));
+    final Semaphore inFlight = new Semaphore(budget);
+    final List<CompletableFuture<Void>> tasks = new ArrayList<>();
+    final ExecutorService ioExecutor = IoExecutors.newIoExecutor(ioThreads);
+    try {
+      for (final int[] batch : createBatches(sizes, batchBytes,
+          maxBatchFiles)) {
+        final boolean streamed = batch.length == 1
+            && sizes[batch[0]] >= batchBytes;
+        // streamed files hold no more than the chunks read ahead in memory
+        final long bytes = streamed
+            ? Math.min(sizes[batch[0]],
+                (long) PrefetchingInputStream.DEFAULT_CHUNK_SIZE
+                    * PrefetchingInputStream.DEFAULT_PREFETCH_CHUNKS)
+            : Arrays.stream(batch).mapToLong(i -> sizes[i]).sum();
+        final int permits = (int) Math.min(budget,
+            Math.max(1, (bytes + 1023) >> 10));
+        inFlight.acquireUninterruptibly(permits);
+        final CompletableFuture<Void> task;
+        if (streamed) {
+          final File file = files.get(batch[0]);
+          final PrefetchingInputStream content = new PrefetchingInputStream(
+              file.toPath(), ioExecutor);
+          task = CompletableFuture.runAsync(
+              () -> results[batch[0]] = new ImportedCsvData(file, content),
+              cpuExecutor);
+        } else {
+          final List<CompletableFuture<byte[]>> contents = new ArrayList<>();
+          for (final int i : batch) {
+            final File file = files.get(i);
+            contents.add(
+                CompletableFuture.supplyAsync(() -> readFile(file), ioExecutor));
+          }
+          task = CompletableFuture
+              .allOf(contents.toArray(new CompletableFuture<?>[0]))
+              .thenRunAsync(() -> {
+                for (int j = 0; j < batch.length; j++) {
+                  results[batch[j]] = new ImportedCsvData(files.get(batch[j]),
+                      contents.get(j).join());
+                }
+              }, cpuExecutor);
+        }
+        tasks.add(task.whenComplete((r, e) -> inFlight.release(permits)));
+      }
+      CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]))
+          .join();
+    } catch (final CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      ioExecutor.shutdownNow();
+    }
+    return Arrays.asList(results);
+  }
+
+  private static byte[] readFile(final File file) {
+    try {
+      return Files.readAllBytes(file.toPath());
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
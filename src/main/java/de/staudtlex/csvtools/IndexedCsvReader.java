@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.staudtlex.csvtools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Provides random access to the rows of a combined CSV file using its
+ * {@link CsvIndex}.
+ * <p>
+ * Rows are read by seeking to the closest preceding checkpoint and parsing
+ * from there, so that reading row {@code k} does not require scanning the file
+ * from the start. Ranges of rows may be read in parallel, each checkpoint
+ * interval being parsed independently.
+ */
+public class IndexedCsvReader {
+  private final Path csvPath;
+  private final CsvIndex index;
+  private final List<String> header;
+  private final CSVFormat format;
+
+  /**
+   * Creates an IndexedCsvReader for a combined CSV file.
+   *
+   * @param csvPath the path to the combined CSV file
+   * @param index   the index of the combined CSV file
+   * @throws IllegalArgumentException if the index does not match the file
+   * @throws RuntimeException         if an I/O error occurs reading the file
+   */
+  public IndexedCsvReader(final Path csvPath, final CsvIndex index) {
+    try {
+      if (Files.size(csvPath) != index.getLength()) {
+        throw new IllegalArgumentException(
+            "Index does not match file " + csvPath + ": expected "
+                + index.getLength() + " bytes, found " + Files.size(csvPath));
+      }
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+    this.csvPath = csvPath;
+    this.index = index;
+    this.header = Collections
+        .unmodifiableList(CombineCsv.readHeader(csvPath.toString()));
+    this.format = CSVFormat.Builder.create()
+        .setHeader(header.toArray(new String[0])).setSkipHeaderRecord(false)
+        .setDelimiter(';').setAllowMissingColumnNames(false).setTrim(true)
+        .setQuote('"').build();
+  }
+
+  /**
+   * @return the index used by this reader
+   */
+  public CsvIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * @return the column names of the combined CSV file
+   */
+  public List<String> getHeader() {
+    return header;
+  }
+
+  /**
+   * Reads a single row.
+   *
+   * @param row the row number
+   * @return the row as {@code Map<String, String>}
+   * @throws IndexOutOfBoundsException if {@code row} is not a valid row number
+   */
+  public Map<String, String> readRow(final long row) {
+    return readRows(row, row + 1).get(0);
+  }
+
+  /**
+   * Reads a range of rows.
+   *
+   * @param from the first row to read (inclusive)
+   * @param to   the last row to read (exclusive)
+   * @return the rows as {@code List<Map<String, String>>}
+   * @throws IndexOutOfBoundsException if the range is not valid
+   */
+  public List<Map<String, String>> readRows(final long from, final long to) {
+    checkRange(from, to);
+    if (from == to) {
+      return new ArrayList<>();
+    }
+    return readChunk(from, to);
+  }
+
+  /**
+   * Reads a range of rows in parallel. The range is split at checkpoints, and
+   * each part is parsed independently.
+   *
+   * @param from the first row to read (inclusive)
+   * @param to   the last row to read (exclusive)
+   * @return the rows as {@code List<Map<String, String>>}, in file order
+   * @throws IndexOutOfBoundsException if the range is not valid
+   */
+  public List<Map<String, String>> readRowsParallel(final long from,
+      final long to) {
+    checkRange(from, to);
+    final List<long[]> chunks = new ArrayList<>();
+    final long interval = index.getInterval();
+    for (long start = from; start < to;) {
+      final long end = Math.min(to, (start / interval + 1) * interval);
+      chunks.add(new long[] { start, end });
+      start = end;
+    }
+    return chunks.parallelStream().map(e -> readChunk(e[0], e[1]))
+        .flatMap(e -> e.stream()).collect(Collectors.toList());
+  }
+
+  /**
+   * Reads all rows contributed by a source file.
+   *
+   * @param name the name of the source file, as recorded in the index
+   * @return the rows as {@code List<Map<String, String>>}
+   * @throws IllegalArgumentException if the index does not contain a source
+   *                                    file of this name
+   */
+  public List<Map<String, String>> readSource(final String name) {
+    final CsvIndex.Source source = index.getSource(name);
+    if (source == null) {
+      throw new IllegalArgumentException("Unknown source file: " + name);
+    }
+    return readRowsParallel(source.getFirstRow(),
+        source.getFirstRow() + source.getRowCount());
+  }
+
+  private void checkRange(final long from, final long to) {
+    if (from < 0 || to > index.getRowCount() || from > to) {
+      throw new IndexOutOfBoundsException("Rows: " + from + " to " + to
+          + ", rows: " + index.getRowCount());
+    }
+  }
+
+  /**
+   * Parses the rows {@code from} (inclusive) to {@code to} (exclusive),
+   * starting at the checkpoint preceding {@code from}.
+   */
+  private List<Map<String, String>> readChunk(final long from, final long to) {
+    final long checkpointRow = index.getCheckpointRow(from);
+    try {
+      final FileChannel channel = FileChannel.open(csvPath,
+          StandardOpenOption.READ);
+      channel.position(index.getCheckpointOffset(from));
+      final BufferedReader reader = new BufferedReader(
+          Channels.newReader(channel, StandardCharsets.UTF_8.name()));
+      try (CSVParser parser = new CSVParser(reader, format)) {
+        final Iterator<CSVRecord> records = parser.iterator();
+        for (long row = checkpointRow; row < from; row++) {
+          records.next();
+        }
+        final List<Map<String, String>> rows = new ArrayList<>(
+            (int) (to - from));
+        for (long row = from; row < to; row++) {
+          rows.add(records.next().toMap());
+        }
+        return rows;
+      }
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
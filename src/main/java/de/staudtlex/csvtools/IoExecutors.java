@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.staudtlex.csvtools;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors on which blocking file reads are performed.
+ * <p>
+ * This is the Java 8 implementation, which uses a fixed pool of platform
+ * threads. The multi-release jar contains a replacement of this class for
+ * Java 21 and later, which uses one virtual thread per task instead (see
+ * {@code src/main/java21}).
+ */
+final class IoExecutors {
+
+  private IoExecutors() {
+  }
+
+  /**
+   * Creates an executor for blocking file reads, using daemon threads so that
+   * blocked reads never keep the JVM alive.
+   *
+   * @param threads the number of threads
+   * @return the executor
+   */
+  static ExecutorService newIoExecutor(final int threads) {
+    final AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, r -> {
+      final Thread thread = new Thread(r,
+          "csvtools-io-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @return {@code true} if the executors created by
+   *         {@link #newIoExecutor(int)} run tasks on virtual threads
+   */
+  static boolean usesVirtualThreads() {
+    return false;
+  }
+
+}
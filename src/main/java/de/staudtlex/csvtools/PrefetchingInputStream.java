@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.staudtlex.csvtools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * An input stream over a file whose contents are read ahead in fixed-size
+ * chunks on an executor, so that the consuming thread never performs blocking
+ * file reads itself.
+ * <p>
+ * At most {@code prefetchChunks} chunks are read ahead, which bounds the memory
+ * held by the stream regardless of the file size. Opening the file and reading
+ * each chunk are tasks of their own, so no thread of the executor is held while
+ * the stream is being consumed.
+ */
+final class PrefetchingInputStream extends InputStream {
+
+  /**
+   * The default chunk size in bytes.
+   */
+  static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+  /**
+   * The default number of chunks read ahead.
+   */
+  static final int DEFAULT_PREFETCH_CHUNKS = 8;
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final Executor executor;
+  private final int chunkSize;
+  private final CompletableFuture<FileChannel> channel;
+  private final ArrayDeque<CompletableFuture<ByteBuffer>> chunks =
+      new ArrayDeque<>();
+  private long nextPosition = 0;
+  private ByteBuffer current = EMPTY;
+  private boolean endOfFile = false;
+  private boolean closed = false;
+
+  /**
+   * Creates a PrefetchingInputStream and starts reading ahead.
+   *
+   * @param path           the file to be read
+   * @param executor       the executor on which the file is opened and read
+   * @param chunkSize      the number of bytes read by each task
+   * @param prefetchChunks the maximum number of chunks read ahead
+   * @throws IllegalArgumentException if {@code chunkSize} or
+   *                                    {@code prefetchChunks} is less than 1
+   */
+  PrefetchingInputStream(final Path path, final Executor executor,
+      final int chunkSize, final int prefetchChunks) {
+    if (chunkSize < 1 || prefetchChunks < 1) {
+      throw new IllegalArgumentException(
+          "Chunk size and number of chunks must be positive");
+    }
+    this.executor = executor;
+    this.chunkSize = chunkSize;
+    this.channel = CompletableFuture.supplyAsync(() -> {
+      try {
+        return FileChannel.open(path, StandardOpenOption.READ);
+      } catch (final IOException e) {
+        throw new RuntimeException(e);
+      }
+    }, executor);
+    for (int i = 0; i < prefetchChunks; i++) {
+      requestChunk();
+    }
+  }
+
+  /**
+   * Creates a PrefetchingInputStream with the default chunk size and number of
+   * chunks read ahead.
+   *
+   * @param path     the file to be read
+   * @param executor the executor on which the file is opened and read
+   */
+  PrefetchingInputStream(final Path path, final Executor executor) {
+    this(path, executor, DEFAULT_CHUNK_SIZE, DEFAULT_PREFETCH_CHUNKS);
+  }
+
+  private void requestChunk() {
+    final long position = nextPosition;
+    nextPosition += chunkSize;
+    chunks.add(channel.thenApplyAsync(c -> readChunk(c, position), executor));
+  }
+
+  /**
+   * Reads up to {@code chunkSize} bytes starting at {@code position}; fewer
+   * bytes are returned only at the end of the file.
+   */
+  private ByteBuffer readChunk(final FileChannel c, final long position) {
+    final byte[] bytes = new byte[chunkSize];
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    try {
+      while (buffer.hasRemaining()
+          && c.read(buffer, position + buffer.position()) >= 0) {
+        // read until the chunk is full or the end of the file is reached
+      }
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+    return ByteBuffer.wrap(bytes, 0, buffer.position());
+  }
+
+  private boolean nextChunk() throws IOException {
+    if (endOfFile || closed) {
+      return false;
+    }
+    final CompletableFuture<ByteBuffer> chunk = chunks.poll();
+    requestChunk();
+    try {
+      current = chunk.join();
+    } catch (final CompletionException e) {
+      final Throwable cause = e.getCause();
+      if (cause != null && cause.getCause() instanceof IOException) {
+        throw (IOException) cause.getCause();
+      }
+      throw new IOException(cause);
+    }
+    endOfFile = current.remaining() < chunkSize;
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    final byte[] b = new byte[1];
+    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len)
+      throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (!current.hasRemaining()) {
+      if (!nextChunk()) {
+        return -1;
+      }
+    }
+    final int n = Math.min(len, current.remaining());
+    current.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return current.remaining();
+  }
+
+  /**
+   * Discards the chunks read ahead and closes the file once it has been
+   * opened. Reads still pending fail, and their results are ignored.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    current = EMPTY;
+    channel.thenAccept(c -> {
+      try {
+        c.close();
+      } catch (final IOException e) {
+        // nothing was written, so there is nothing to lose
+      }
+    });
+    chunks.clear();
+  }
+
+}
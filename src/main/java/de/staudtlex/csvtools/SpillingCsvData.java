@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.staudtlex.csvtools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A data object which collects rearranged records batch by batch (typically
+ * one batch per CSV file) within a memory budget.
+ * <p>
+ * The heap size of buffered records is estimated as they are added. Whenever
+ * the estimate exceeds the budget, the oldest buffered batches are spilled to
+ * temporary files in a compact binary row format (each value as byte count
+ * followed by its UTF-8 encoding, in key order). Iterating over a
+ * SpillingCsvData replays all records in the order in which their batches were
+ * added, reading spilled batches back from disk one row at a time.
+ * <p>
+ * All records must have the same keys, as is the case for records rearranged
+ * by {@link CombineCsv#rearrange(CombineCsv.ImportedCsvData, java.util.LinkedHashSet)}.
+ * Closing a SpillingCsvData deletes its temporary files.
+ */
+public class SpillingCsvData implements Iterable<Map<String, String>>, Closeable {
+  // rough heap footprint of a LinkedHashMap, one of its entries, and a String
+  private static final long RECORD_OVERHEAD = 64;
+  private static final long VALUE_OVERHEAD = 80;
+
+  private final List<String> keys;
+  private final long maxMemory;
+  private final List<Batch> batches = new ArrayList<>();
+  private Path spillDirectory = null;
+  private long bufferedBytes = 0;
+  private long rowCount = 0;
+  private int spilledBatches = 0;
+  // batches are spilled oldest first, so all earlier batches are spilled
+  private int oldestBuffered = 0;
+
+  /**
+   * Creates an empty SpillingCsvData.
+   *
+   * @param keys      the records' keys
+   * @param maxMemory the maximum estimated number of bytes of buffered records
+   * @throws IllegalArgumentException if {@code maxMemory} is negative
+   */
+  public SpillingCsvData(final List<String> keys, final long maxMemory) {
+    if (maxMemory < 0) {
+      throw new IllegalArgumentException(
+          "Memory budget must not be negative: " + maxMemory);
+    }
+    this.keys = Collections.unmodifiableList(new ArrayList<>(keys));
+    this.maxMemory = maxMemory;
+  }
+
+  /**
+   * Estimates the heap size of a record.
+   *
+   * @param record the record
+   * @return the estimated number of bytes
+   */
+  static long estimateBytes(final Map<String, String> record) {
+    long bytes = RECORD_OVERHEAD;
+    for (final String value : record.values()) {
+      bytes += VALUE_OVERHEAD + 2L * (value == null ? 0 : value.length());
+    }
+    return bytes;
+  }
+
+  /**
+   * Adds a batch of records, spilling the oldest buffered batches to disk if
+   * the memory budget is exceeded.
+   *
+   * @param records the records to be added
+   * @throws IOException if an I/O error occurs spilling records
+   */
+  public void add(final List<? extends Map<String, String>> records)
+      throws IOException {
+    long bytes = 0;
+    for (final Map<String, String> record : records) {
+      bytes += estimateBytes(record);
+    }
+    batches.add(new Batch(batches.size(), new ArrayList<>(records), bytes));
+    bufferedBytes += bytes;
+    rowCount += records.size();
+    while (bufferedBytes > maxMemory && oldestBuffered < batches.size()) {
+      spill(batches.get(oldestBuffered++));
+    }
+  }
+
+  private void spill(final Batch batch) throws IOException {
+    if (spillDirectory == null) {
+      spillDirectory = Files.createTempDirectory("csvtools-spill-");
+    }
+    batch.file = spillDirectory.resolve("batch-" + batch.number);
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(batch.file)))) {
+      for (final Map<String, String> record : batch.records) {
+        for (final String key : keys) {
+          final String value = record.get(key);
+          BinaryIo.writeString(out, value == null ? "" : value);
+        }
+      }
+    }
+    batch.rowCount = batch.records.size();
+    batch.records = null;
+    bufferedBytes -= batch.bytes;
+    spilledBatches++;
+  }
+
+  /**
+   * @return the records' keys
+   */
+  public List<String> getKeys() {
+    return keys;
+  }
+
+  /**
+   * @return the total number of records, buffered or spilled
+   */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * @return the estimated number of bytes of records held in memory
+   */
+  public long getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  /**
+   * @return the number of batches spilled to disk
+   */
+  public int getSpilledBatchCount() {
+    return spilledBatches;
+  }
+
+  /**
+   * @return the directory containing the spilled batches, or {@code null} if no
+   *         batch has been spilled
+   */
+  Path getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  /**
+   * Returns an iterator over all records, in the order in which their batches
+   * were added.
+   *
+   * @return the iterator
+   * @throws RuntimeException if an I/O error occurs reading spilled records
+   */
+  @Override
+  public Iterator<Map<String, String>> iterator() {
+    return new Iterator<Map<String, String>>() {
+      private final Iterator<Batch> batchIterator = batches.iterator();
+      private Iterator<? extends Map<String, String>> records = null;
+      private DataInputStream in = null;
+      private long remainingRows = 0;
+
+      @Override
+      public boolean hasNext() {
+        while ((records == null || !records.hasNext()) && remainingRows == 0) {
+          closeSpilledBatch();
+          if (!batchIterator.hasNext()) {
+            return false;
+          }
+          final Batch batch = batchIterator.next();
+          if (batch.records != null) {
+            records = batch.records.iterator();
+          } else {
+            records = null;
+            remainingRows = batch.rowCount;
+            try {
+              in = new DataInputStream(
+                  new BufferedInputStream(Files.newInputStream(batch.file)));
+            } catch (final IOException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        }
+        return true;
+      }
+
+      @Override
+      public Map<String, String> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        if (records != null) {
+          return records.next();
+        }
+        final LinkedHashMap<String, String> record = new LinkedHashMap<>();
+        try {
+          for (final String key : keys) {
+            record.put(key, BinaryIo.readString(in));
+          }
+        } catch (final IOException e) {
+          throw new RuntimeException(e);
+        }
+        if (--remainingRows == 0) {
+          closeSpilledBatch();
+        }
+        return record;
+      }
+
+      private void closeSpilledBatch() {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (final IOException e) {
+            throw new RuntimeException(e);
+          }
+          in = null;
+        }
+      }
+    };
+  }
+
+  /**
+   * Deletes the spilled batches.
+   *
+   * @throws IOException if an I/O error occurs deleting the temporary files
+   */
+  @Override
+  public void close() throws IOException {
+    if (spillDirectory == null) {
+      return;
+    }
+    for (final Batch batch : batches) {
+      if (batch.file != null) {
+        Files.deleteIfExists(batch.file);
+      }
+    }
+    Files.deleteIfExists(spillDirectory);
+    spillDirectory = null;
+  }
+
+  /**
+   * A batch of records, held either in memory or in a temporary file.
+   */
+  private static class Batch {
+    private final int number;
+    private List<? extends Map<String, String>> records;
+    private final long bytes;
+    private Path file = null;
+    private long rowCount = 0;
+
+    Batch(final int number, final List<? extends Map<String, String>> records,
+        final long bytes) {
+      this.number = number;
+      this.records = records;
+      this.bytes = bytes;
+    }
+  }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.staudtlex.csvtools;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executors on which blocking file reads are performed.
+ * <p>
+ * This is the Java 21 implementation, packaged in
+ * {@code META-INF/versions/21} of the multi-release jar. Each task runs on a
+ * virtual thread of its own, so that every input file is read by a separate
+ * thread without tying up a platform thread while blocked.
+ */
+final class IoExecutors {
+
+  private IoExecutors() {
+  }
+
+  /**
+   * Creates an executor for blocking file reads, starting a new virtual thread
+   * for each task.
+   *
+   * @param threads ignored, as the number of virtual threads is not bounded
+   * @return the executor
+   */
+  static ExecutorService newIoExecutor(final int threads) {
+    return Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("csvtools-io-", 1).factory());
+  }
+
+  /**
+   * @return {@code true} if the executors created by
+   *         {@link #newIoExecutor(int)} run tasks on virtual threads
+   */
+  static boolean usesVirtualThreads() {
+    return true;
+  }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * Use of the tests defined below with the JUnit library is explicitly
+ * permitted.
+ */
+package de.staudtlex.csvtools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ColumnarCsvTest {
+  final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+  final PrintStream originalOut = System.out;
+
+  @TempDir
+  Path tempDir;
+
+  @BeforeEach
+  private void setUpStreams() {
+    System.setOut(new PrintStream(outContent));
+  }
+
+  @AfterEach
+  private void restoreStreams() {
+    System.setOut(originalOut);
+  }
+
+  @Test
+  void testRoundTrip() throws IOException {
+    final List<Map<String, String>> reference = TestData
+        .readReference("gss-append.csv");
+    final Path columnarFile = tempDir.resolve("combined.csvc");
+    TestData.combine("gss-append*.csv", "-c", columnarFile.toString());
+
+    try (ColumnarCsv.Reader reader = new ColumnarCsv.Reader(columnarFile)) {
+      assertEquals(Arrays.asList("obs", "year", "age", "denom", "relig",
+          "partyid", "rincome", "race", "marital", "tvhours"),
+          reader.getKeys());
+      assertEquals(reference.size(), reader.getRowCount());
+      assertEquals(reference, reader.readAll());
+
+      // scan selected columns only
+      final List<String> selected = Arrays.asList("relig", "obs");
+      final List<Map<String, String>> expected = reference.stream().map(e -> {
+        final Map<String, String> record = new LinkedHashMap<>();
+        selected.forEach(k -> record.put(k, e.get(k)));
+        return record;
+      }).collect(Collectors.toList());
+      assertEquals(expected, reader.scan(selected));
+      assertEquals(
+          reference.stream().map(e -> e.get("year"))
+              .collect(Collectors.toList()),
+          reader.readColumn("year"));
+      assertThrows(IllegalArgumentException.class,
+          () -> reader.readColumn("no-such-column"));
+    }
+
+    // dictionary and run-length encoding keep the file well below CSV size
+    assertTrue(Files.size(columnarFile) < Files.size(
+        Paths.get("src/test/resources/csv/reference-data/gss-append.csv"))
+        / 2);
+  }
+
+  @Test
+  void testRowGroupsAndEncodings() throws IOException {
+    final List<String> keys = Arrays.asList("a", "b", "c");
+    final List<Map<String, String>> records = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      final Map<String, String> record = new LinkedHashMap<>();
+      record.put("a", i < 50 ? "constant" : ""); // long runs
+      record.put("b", "value \"" + i + "\";\nwith line break"); // all distinct
+      if (i % 3 != 0) {
+        record.put("c", i % 2 == 0 ? "äöü" : "😀");
+      } // missing keys are written as empty values
+      records.add(record);
+    }
+    final Path columnarFile = tempDir.resolve("small.csvc");
+    try (ColumnarCsv.Writer writer = new ColumnarCsv.Writer(columnarFile,
+        keys, 7)) {
+      for (final Map<String, String> record : records) {
+        writer.write(record);
+      }
+    }
+
+    try (ColumnarCsv.Reader reader = new ColumnarCsv.Reader(columnarFile)) {
+      assertEquals(keys, reader.getKeys());
+      assertEquals(100, reader.getRowCount());
+      assertEquals(15, reader.getRowGroupCount());
+      final List<LinkedHashMap<String, String>> result = reader.readAll();
+      for (int i = 0; i < records.size(); i++) {
+        for (final String key : keys) {
+          assertEquals(records.get(i).getOrDefault(key, ""),
+              result.get(i).get(key));
+        }
+      }
+    }
+  }
+
+  @Test
+  void testEmptyFile() throws IOException {
+    final Path columnarFile = tempDir.resolve("empty.csvc");
+    ColumnarCsv.write(columnarFile, Arrays.asList("a", "b"),
+        new ArrayList<Map<String, String>>());
+    try (ColumnarCsv.Reader reader = new ColumnarCsv.Reader(columnarFile)) {
+      assertEquals(Arrays.asList("a", "b"), reader.getKeys());
+      assertEquals(0, reader.getRowCount());
+      assertEquals(0, reader.readAll().size());
+    }
+  }
+
+  @Test
+  void testCorruptRunLength() {
+    // plain encoding, run of 0 values
+    assertThrows(IOException.class,
+        () -> ColumnarCsv.decodeColumn(new byte[] {
+            0, 0, 1, 'a'
+        }, 1));
+    // plain encoding, run exceeding the row count
+    assertThrows(IOException.class,
+        () -> ColumnarCsv.decodeColumn(new byte[] {
+            0, 5, 1, 'a'
+        }, 1));
+    // dictionary encoding, index beyond the dictionary
+    assertThrows(IOException.class,
+        () -> ColumnarCsv.decodeColumn(new byte[] {
+            1, 1, 1, 'a', 1, 1
+        }, 1));
+  }
+
+  /**
+   * Writes a columnar file consisting of header, column chunks, footer and
+   * trailer with the specified footer length.
+   */
+  private Path writeColumnarFile(final byte[] chunks, final byte[] footer,
+      final int footerLength) throws IOException {
+    final Path columnarFile = tempDir.resolve("corrupt.csvc");
+    try (DataOutputStream out = new DataOutputStream(
+        Files.newOutputStream(columnarFile))) {
+      out.writeInt(0x43535643); // "CSVC"
+      out.writeInt(1);
+      out.write(chunks);
+      out.write(footer);
+      out.writeInt(footerLength);
+      out.writeInt(0x43535643);
+    }
+    return columnarFile;
+  }
+
+  @Test
+  void testCorruptFooter() throws IOException {
+    // one column "a", one row group of one row, chunk at offset 8 of length 3
+    // holding a single empty value in plain encoding
+    final byte[] chunk = {
+        0, 1, 0
+    };
+    final byte[] footer = {
+        1, 1, 'a', 1, 1, 8, 3
+    };
+    try (ColumnarCsv.Reader reader = new ColumnarCsv.Reader(
+        writeColumnarFile(chunk, footer, footer.length))) {
+      assertEquals(Arrays.asList(""), reader.readColumn("a"));
+    }
+
+    // footer length beyond the file, or negative
+    final Path tooLong = writeColumnarFile(chunk, footer, Integer.MAX_VALUE);
+    assertThrows(IOException.class, () -> new ColumnarCsv.Reader(tooLong));
+    final Path negative = writeColumnarFile(chunk, footer, -1);
+    assertThrows(IOException.class, () -> new ColumnarCsv.Reader(negative));
+    // footer overlapping the header
+    final Path overlapping = writeColumnarFile(chunk, footer,
+        footer.length + chunk.length + 1);
+    assertThrows(IOException.class, () -> new ColumnarCsv.Reader(overlapping));
+
+    // column count and row group count exceeding the footer
+    final byte[] columns = {
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07
+    };
+    final Path manyColumns = writeColumnarFile(chunk, columns, columns.length);
+    assertThrows(IOException.class, () -> new ColumnarCsv.Reader(manyColumns));
+    final byte[] rowGroups = {
+        0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07
+    };
+    final Path manyRowGroups = writeColumnarFile(chunk, rowGroups,
+        rowGroups.length);
+    assertThrows(IOException.class,
+        () -> new ColumnarCsv.Reader(manyRowGroups));
+
+    // chunk offset within the header, chunk length reaching into the footer
+    final byte[] offset = {
+        1, 1, 'a', 1, 1, 0, 3
+    };
+    final Path badOffset = writeColumnarFile(chunk, offset, offset.length);
+    assertThrows(IOException.class, () -> new ColumnarCsv.Reader(badOffset));
+    final byte[] length = {
+        1, 1, 'a', 1, 1, 8, 4
+    };
+    final Path badLength = writeColumnarFile(chunk, length, length.length);
+    assertThrows(IOException.class, () -> new ColumnarCsv.Reader(badLength));
+  }
+
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * Use of the tests defined below with the JUnit library is explicitly
+ * permitted.
+ */
+package de.staudtlex.csvtools;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * End-to-end tests of {@link CombineCsv} on synthetic data.
+ * <p>
+ * Tests tagged {@code performance} run only with the {@code perf} Maven profile
+ * (or {@code make perf-test}). They combine a generated dataset of
+ * {@code csvtools.perf.bytes} bytes (default: 1 GiB) within a memory budget of
+ * {@code csvtools.perf.maxMemory} (default: 256 MiB; {@code none} for no
+ * budget) and compare throughput and peak live heap usage (the largest heap
+ * usage reported after any major garbage collection during the run) against
+ * the baseline recorded in {@code src/test/resources/perf/baseline.properties}.
+ * The baseline only applies to the input size, memory budget, number of
+ * processors, and maximum heap size ({@code csvtools.perf.heap}) it was
+ * recorded with; the test is skipped if these differ. With
+ * {@code -Dcsvtools.perf.record=true}, the measured values are recorded as new
+ * baseline instead.
+ */
+public class CombineCsvPerformanceTest {
+  private static final Path BASELINE = Paths
+      .get("src/test/resources/perf/baseline.properties");
+  private static final Path DATA_DIR = Paths.get("target/perf-data");
+
+  final PrintStream originalOut = System.out;
+
+  @TempDir
+  Path tempDir;
+
+  @AfterEach
+  private void restoreStreams() {
+    System.setOut(originalOut);
+  }
+
+  @Test
+  void testGeneratorIsDeterministic() throws IOException {
+    final SyntheticCsvGenerator generator = new SyntheticCsvGenerator(7, 3,
+        500, 8, 0.2, 0.3, 0.1);
+    final List<File> first = generator.generate(tempDir.resolve("first"));
+    final List<File> second = generator.generate(tempDir.resolve("second"));
+    assertEquals(3, first.size());
+    for (int i = 0; i < first.size(); i++) {
+      assertArrayEquals(Files.readAllBytes(first.get(i).toPath()),
+          Files.readAllBytes(second.get(i).toPath()));
+    }
+  }
+
+  @Test
+  void testCombineSyntheticData() throws IOException {
+    final SyntheticCsvGenerator generator = new SyntheticCsvGenerator(11, 8,
+        4000, 12, 0.2, 0.3, 0.05);
+    final String[] files = generator.generate(tempDir).stream()
+        .map(File::getAbsolutePath).toArray(String[]::new);
+    final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(outContent));
+    CombineCsv.main(files);
+
+    // every row is combined exactly once and in order, including rows with
+    // multiline values
+    final CSVFormat format = CSVFormat.Builder.create().setHeader()
+        .setSkipHeaderRecord(true).setDelimiter(';').setQuote('"').build();
+    try (CSVParser parser = new CSVParser(
+        new StringReader(outContent.toString("UTF-8")), format)) {
+      final List<String> header = parser.getHeaderNames();
+      assertTrue(header.stream().anyMatch(e -> e.contains("__duplicated_")));
+      assertTrue(header.stream().anyMatch(e -> e.startsWith("extra_")));
+      long row = 0;
+      for (final CSVRecord record : parser) {
+        assertEquals(String.valueOf(row++), record.get("id"));
+        assertEquals(header.size(), record.size());
+      }
+      assertEquals(generator.getRows(), row);
+    }
+  }
+
+  @Tag("performance")
+  @Test
+  void testThroughputAndPeakHeap() throws IOException {
+    final long targetBytes = Long.getLong("csvtools.perf.bytes", 1L << 30);
+    final String maxMemory = System.getProperty("csvtools.perf.maxMemory",
+        "256m");
+    final double tolerance = Double.parseDouble(
+        System.getProperty("csvtools.perf.tolerance", "0.25"));
+    final boolean record = Boolean.getBoolean("csvtools.perf.record");
+
+    // generate (or reuse) a dataset of roughly targetBytes bytes
+    final SyntheticCsvGenerator sample = new SyntheticCsvGenerator(42, 200, 0,
+        20, 0.05, 0.2, 0.01);
+    final long rows = (long) (targetBytes / sample.estimateBytesPerRow());
+    final SyntheticCsvGenerator generator = new SyntheticCsvGenerator(42, 200,
+        rows, 20, 0.05, 0.2, 0.01);
+    final Path dataDir = DATA_DIR.resolve(generator.getName());
+    final Path complete = dataDir.resolve(".complete");
+    if (!Files.exists(complete)) {
+      generator.generate(dataDir);
+      Files.createFile(complete);
+    }
+    final List<File> files = CombineCsv
+        .findFiles(dataDir.resolve("synthetic-part*.csv").toString());
+    Collections.sort(files);
+    final long inputBytes = files.stream().mapToLong(File::length).sum();
+    // the configured heap size rather than the maximum heap size reported by
+    // the JVM, which depends on the JVM version and collector
+    final String maxHeap = System.getProperty("csvtools.perf.heap",
+        String.valueOf(Runtime.getRuntime().maxMemory()));
+    final int availableProcessors = Runtime.getRuntime().availableProcessors();
+
+    // the baseline is only meaningful for the configuration it was recorded
+    // with, so other configurations are skipped rather than failed
+    final Properties baseline = new Properties();
+    if (!record) {
+      try (Reader in = Files.newBufferedReader(BASELINE,
+          StandardCharsets.UTF_8)) {
+        baseline.load(in);
+      }
+      final String configuration = String.format(Locale.ROOT,
+          "inputBytes=%d, maxMemory=%s, availableProcessors=%d, maxHeap=%s",
+          inputBytes, maxMemory, availableProcessors, maxHeap);
+      final String recorded = String.format(Locale.ROOT,
+          "inputBytes=%s, maxMemory=%s, availableProcessors=%s, maxHeap=%s",
+          baseline.getProperty("inputBytes"),
+          baseline.getProperty("maxMemory"),
+          baseline.getProperty("availableProcessors"),
+          baseline.getProperty("maxHeap"));
+      assumeTrue(recorded.equals(configuration), "The baseline in " + BASELINE
+          + " was recorded with " + recorded + ", not " + configuration
+          + ". Run with the recorded csvtools.perf.bytes, "
+          + "csvtools.perf.maxMemory and csvtools.perf.heap on a machine with "
+          + "the recorded number of processors, or record a baseline for this "
+          + "configuration with -Dcsvtools.perf.record=true");
+    }
+
+    // combine, discarding the output
+    final CountingOutputStream outBytes = new CountingOutputStream();
+    System.setOut(new PrintStream(outBytes));
+    System.gc();
+    final long peakLiveHeap;
+    final double seconds;
+    try (LiveHeapRecorder recorder = new LiveHeapRecorder()) {
+      final long start = System.nanoTime();
+      final List<String> args = new ArrayList<>();
+      if (!maxMemory.equals("none")) {
+        args.add("-m");
+        args.add(maxMemory);
+      }
+      files.forEach(e -> args.add(e.getAbsolutePath()));
+      CombineCsv.main(args.toArray(new String[0]));
+      seconds = (System.nanoTime() - start) / 1e9;
+      System.setOut(originalOut);
+      assertTrue(recorder.getMajorCollections() > 0,
+          "No major garbage collection during the run, so the peak live heap "
+              + "is unknown; use a smaller csvtools.perf.heap");
+      peakLiveHeap = recorder.finish();
+    }
+
+    final double throughput = inputBytes / 1e6 / seconds;
+    final double peakLiveHeapMB = peakLiveHeap / 1e6;
+    System.err.println(String.format(Locale.ROOT,
+        "Combined %d bytes (%d files, %d rows) into %d bytes in %.1f s: "
+            + "%.2f MB/s, peak live heap %.1f MB (%.2f bytes per input byte)",
+        inputBytes, files.size(), rows, outBytes.count, seconds, throughput,
+        peakLiveHeapMB, (double) peakLiveHeap / inputBytes));
+    assertTrue(outBytes.count > inputBytes / 2);
+
+    if (record) {
+      baseline.setProperty("inputBytes", String.valueOf(inputBytes));
+      baseline.setProperty("maxMemory", maxMemory);
+      baseline.setProperty("availableProcessors",
+          String.valueOf(availableProcessors));
+      baseline.setProperty("maxHeap", maxHeap);
+      baseline.setProperty("throughputMBPerSecond",
+          String.format(Locale.ROOT, "%.2f", throughput));
+      baseline.setProperty("peakLiveHeapMB",
+          String.format(Locale.ROOT, "%.1f", peakLiveHeapMB));
+      try (Writer out = Files.newBufferedWriter(BASELINE,
+          StandardCharsets.UTF_8)) {
+        baseline.store(out, "Recorded by CombineCsvPerformanceTest with "
+            + "-Dcsvtools.perf.record=true; throughput and peak live heap "
+            + "are checked with a tolerance of csvtools.perf.tolerance");
+      }
+      return;
+    }
+
+    final double minThroughput = Double.parseDouble(
+        baseline.getProperty("throughputMBPerSecond")) * (1 - tolerance);
+    final double maxPeakLiveHeapMB = Double.parseDouble(
+        baseline.getProperty("peakLiveHeapMB")) * (1 + tolerance);
+    assertTrue(throughput >= minThroughput, String.format(Locale.ROOT,
+        "Throughput %.2f MB/s below floor %.2f MB/s", throughput,
+        minThroughput));
+    assertTrue(peakLiveHeapMB <= maxPeakLiveHeapMB, String.format(Locale.ROOT,
+        "Peak live heap %.1f MB above ceiling %.1f MB", peakLiveHeapMB,
+        maxPeakLiveHeapMB));
+  }
+
+  /**
+   * Records the maximum heap usage after major garbage collections, summed over
+   * all heap pools, from the notification sent after each collection. Unlike
+   * the collection usage of the individual pools, which is only updated by the
+   * collector of that pool, the usage after each collection reflects the
+   * whole heap at that point. Minor collections are ignored, as the usage after
+   * them includes unreachable objects of the old generation, which grow with
+   * the maximum heap size rather than with the live data.
+   */
+  private static class LiveHeapRecorder
+      implements NotificationListener, AutoCloseable {
+    private final Set<String> heapPools = ManagementFactory
+        .getMemoryPoolMXBeans().stream()
+        .filter(e -> e.getType() == MemoryType.HEAP)
+        .map(MemoryPoolMXBean::getName).collect(Collectors.toSet());
+    private final List<NotificationEmitter> emitters = ManagementFactory
+        .getGarbageCollectorMXBeans().stream()
+        .filter(e -> e instanceof NotificationEmitter)
+        .map(e -> (NotificationEmitter) e).collect(Collectors.toList());
+    private long peak = 0;
+    private long collections = 0;
+    private long majorCollections = 0;
+
+    LiveHeapRecorder() {
+      emitters.forEach(e -> e.addNotificationListener(this, null, null));
+    }
+
+    @Override
+    public synchronized void handleNotification(
+        final Notification notification, final Object handback) {
+      if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+          .equals(notification.getType())) {
+        return;
+      }
+      final GarbageCollectionNotificationInfo gc =
+          GarbageCollectionNotificationInfo
+              .from((CompositeData) notification.getUserData());
+      if ("end of major GC".equals(gc.getGcAction())) {
+        final GcInfo info = gc.getGcInfo();
+        final long used = info.getMemoryUsageAfterGc().entrySet().stream()
+            .filter(e -> heapPools.contains(e.getKey()))
+            .mapToLong(e -> e.getValue().getUsed()).sum();
+        peak = Math.max(peak, used);
+        majorCollections++;
+      }
+      collections++;
+      notifyAll();
+    }
+
+    synchronized long getCollections() {
+      return collections;
+    }
+
+    synchronized long getMajorCollections() {
+      return majorCollections;
+    }
+
+    /**
+     * Triggers a final collection and waits for its notification, so that the
+     * notifications of all earlier collections have been handled.
+     *
+     * @return the peak heap usage after major garbage collections
+     */
+    long finish() {
+      final long before = getCollections();
+      System.gc();
+      final long deadline = System.nanoTime() + 10_000_000_000L;
+      synchronized (this) {
+        try {
+          while (collections == before && System.nanoTime() < deadline) {
+            wait(100);
+          }
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return peak;
+      }
+    }
+
+    @Override
+    public void close() {
+      for (final NotificationEmitter emitter : emitters) {
+        try {
+          emitter.removeNotificationListener(this);
+        } catch (final ListenerNotFoundException e) {
+          // already removed
+        }
+      }
+    }
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    long count = 0;
+
+    @Override
+    public void write(final int b) {
+      count++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+      count += len;
+    }
+  }
+
+}
@@ -22,12 +22,16 @@
 package de.staudtlex.csvtools;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -36,6 +40,7 @@ import java.util.LinkedHashSet;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class CombineCsvTest {
   final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
@@ -43,6 +48,9 @@ public class CombineCsvTest {
   final PrintStream originalOut = System.out;
   final PrintStream originalErr = System.err;
 
+  @TempDir
+  Path tempDir;
+
   @BeforeEach
   private void setUpStreams() {
     System.setOut(new PrintStream(outContent));
@@ -259,6 +267,35 @@ public class CombineCsvTest {
     }), CombineCsv.readHeader("src/test/resources/csv/test-data/header-6.csv"));
   }
 
+  @Test
+  void testParseSize() {
+    assertEquals(1000, CombineCsv.parseSize("1000"));
+    assertEquals(64L << 10, CombineCsv.parseSize("64k"));
+    assertEquals(512L << 20, CombineCsv.parseSize("512M"));
+    assertEquals(2L << 30, CombineCsv.parseSize("2g"));
+    assertThrows(NumberFormatException.class, () -> CombineCsv.parseSize("g"));
+    assertThrows(NumberFormatException.class,
+        () -> CombineCsv.parseSize("-1m"));
+  }
+
+  @Test
+  void testCreateWindows() throws IOException {
+    final List<File> files = new ArrayList<>();
+    for (final int size : new int[] {
+        3, 4, 10, 2, 2, 2
+    }) {
+      final Path file = tempDir.resolve("file" + files.size() + ".csv");
+      Files.write(file, new byte[size]);
+      files.add(file.toFile());
+    }
+    // windows keep the order of files; larger files form a window of their own
+    assertEquals(
+        Arrays.asList(files.subList(0, 2), files.subList(2, 3),
+            files.subList(3, 6)),
+        CombineCsv.createWindows(files, 7));
+    assertEquals(Arrays.asList(files), CombineCsv.createWindows(files, 100));
+  }
+
   // @Test
   // void testSort() {
 
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * Use of the tests defined below with the JUnit library is explicitly
+ * permitted.
+ */
+package de.staudtlex.csvtools;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.apache.commons.csv.CSVRecord;
+import org.junit.jupiter.api.Test;
+
+import de.staudtlex.csvtools.CombineCsv.ImportedCsvData;
+
+public class ImportSchedulerTest {
+
+  @Test
+  void testCreateBatches() {
+    final long[] sizes = { 10, 5000, 3, 2000, 1, 1, 400, 700 };
+    final List<int[]> batches = ImportScheduler.createBatches(sizes, 1000, 3);
+    // large files form batches of their own, small files are combined until
+    // either the batch size or the maximum number of files is reached
+    assertEquals(5, batches.size());
+    assertArrayEquals(new int[] { 1 }, batches.get(0));
+    assertArrayEquals(new int[] { 3 }, batches.get(1));
+    assertArrayEquals(new int[] { 7, 6 }, batches.get(2));
+    assertArrayEquals(new int[] { 0, 2, 4 }, batches.get(3));
+    assertArrayEquals(new int[] { 5 }, batches.get(4));
+  }
+
+  @Test
+  void testCreateBatchesKeepsAllFiles() {
+    final long[] sizes = { 1, 1, 1, 1, 1, 1, 1 };
+    final List<int[]> batches = ImportScheduler.createBatches(sizes, 1000, 3);
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6),
+        batches.stream().flatMapToInt(Arrays::stream).sorted().boxed()
+            .collect(Collectors.toList()));
+    assertEquals(3, batches.size());
+  }
+
+  @Test
+  void testImportAll() throws IOException {
+    final List<File> files = CombineCsv
+        .findFiles("src/test/resources/csv/test-data/gss-merge*.csv");
+    Collections.sort(files);
+    final ExecutorService cpuExecutor = Executors.newFixedThreadPool(2);
+    try {
+      // a small batch size yields a mix of single-file and multi-file batches
+      // and a small prefetch budget blocks until earlier batches complete
+      final List<ImportedCsvData> imported = new ImportScheduler(2, 8192,
+          4096, 8, cpuExecutor).importAll(files);
+      assertEquals(files.size(), imported.size());
+      for (int i = 0; i < files.size(); i++) {
+        final String path = files.get(i).getAbsolutePath();
+        assertEquals(path, imported.get(i).getFilePath());
+        assertEquals(CombineCsv.makeDistinct(CombineCsv.readHeader(path),
+            "__duplicated_"), imported.get(i).getKeys());
+        final List<Map<String, String>> expected = CombineCsv
+            .parseCsv(path, imported.get(i).getKeys()).stream()
+            .map(CSVRecord::toMap).collect(Collectors.toList());
+        assertEquals(expected, imported.get(i).getRecords());
+      }
+    } finally {
+      cpuExecutor.shutdown();
+    }
+  }
+
+  @Test
+  void testImportMissingFile() {
+    final List<File> files = Arrays.asList(
+        new File("src/test/resources/csv/test-data/header-1.csv"),
+        new File("src/test/resources/csv/test-data/no-such-file.csv"));
+    assertThrows(RuntimeException.class,
+        () -> new ImportScheduler().importAll(files));
+  }
+
+}
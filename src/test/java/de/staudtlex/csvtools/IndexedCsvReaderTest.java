@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * Use of the tests defined below with the JUnit library is explicitly
+ * permitted.
+ */
+package de.staudtlex.csvtools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class IndexedCsvReaderTest {
+  final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+  final PrintStream originalOut = System.out;
+
+  @TempDir
+  Path tempDir;
+
+  @BeforeEach
+  private void setUpStreams() {
+    System.setOut(new PrintStream(outContent));
+  }
+
+  @AfterEach
+  private void restoreStreams() {
+    System.setOut(originalOut);
+  }
+
+  /**
+   * Combines the test files matching {@code glob}, writing the output and its
+   * index to the temporary directory.
+   */
+  private IndexedCsvReader combineWithIndex(final String glob,
+      final int interval) throws IOException {
+    final Path csvFile = tempDir.resolve("combined.csv");
+    final Path indexFile = tempDir.resolve("combined.csv.idx");
+    TestData.combine(glob, "-i", indexFile.toString(), "-n",
+        String.valueOf(interval));
+    Files.write(csvFile, outContent.toByteArray());
+    return new IndexedCsvReader(csvFile, CsvIndex.read(indexFile));
+  }
+
+  @Test
+  void testReadRow() throws IOException {
+    final List<Map<String, String>> reference = TestData.readReference(
+        "gss-append.csv");
+    final IndexedCsvReader reader = combineWithIndex("gss-append*.csv", 100);
+    assertEquals(reference.size(), reader.getIndex().getRowCount());
+    for (final long row : new long[] {
+        0, 1, 99, 100, 101, 12345, reference.size() - 1
+    }) {
+      assertEquals(reference.get((int) row), reader.readRow(row));
+    }
+    assertThrows(IndexOutOfBoundsException.class,
+        () -> reader.readRow(reference.size()));
+  }
+
+  @Test
+  void testReadRows() throws IOException {
+    final List<Map<String, String>> reference = TestData.readReference(
+        "gss-append.csv");
+    final IndexedCsvReader reader = combineWithIndex("gss-append*.csv", 128);
+    assertEquals(reference.subList(150, 380), reader.readRows(150, 380));
+    assertEquals(reference.subList(150, 380),
+        reader.readRowsParallel(150, 380));
+    assertEquals(reference, reader.readRowsParallel(0, reference.size()));
+  }
+
+  @Test
+  void testReadSource() throws IOException {
+    final List<Map<String, String>> reference = TestData.readReference(
+        "gss-append.csv");
+    final IndexedCsvReader reader = combineWithIndex("gss-append*.csv", 1000);
+    final List<CsvIndex.Source> sources = reader.getIndex().getSources();
+    assertEquals(72, sources.size());
+    assertEquals(reference.size(), sources.stream()
+        .mapToLong(CsvIndex.Source::getRowCount).sum());
+    for (final CsvIndex.Source source : sources) {
+      final int first = (int) source.getFirstRow();
+      assertEquals(
+          reference.subList(first, first + (int) source.getRowCount()),
+          reader.readSource(source.getName()));
+    }
+  }
+
+  /**
+   * Quoted values spanning several lines ({@code \n} and {@code \r\n}) and
+   * multi-byte UTF-8 characters must not shift the recorded byte offsets.
+   */
+  @Test
+  void testMultilineAndMultiByteValues() throws IOException {
+    final List<Map<String, String>> reference = TestData.readReference(
+        "multiline.csv");
+    assertTrue(reference.stream().anyMatch(e -> e.get("text").contains("\r\n")
+        && e.get("text").contains("\uD83D\uDE00")));
+    for (final int interval : new int[] {
+        1, 2, 3
+    }) {
+      outContent.reset();
+      final IndexedCsvReader reader = combineWithIndex("multiline-part*.csv",
+          interval);
+      assertEquals(reference.size(), reader.getIndex().getRowCount());
+      for (int row = 0; row < reference.size(); row++) {
+        assertEquals(reference.get(row), reader.readRow(row));
+      }
+      assertEquals(reference,
+          reader.readRowsParallel(0, reference.size()));
+      assertEquals(reference.subList(4, 23), reader.readRowsParallel(4, 23));
+      final List<CsvIndex.Source> sources = reader.getIndex().getSources();
+      assertEquals(3, sources.size());
+      for (final CsvIndex.Source source : sources) {
+        final int first = (int) source.getFirstRow();
+        assertEquals(
+            reference.subList(first, first + (int) source.getRowCount()),
+            reader.readSource(source.getName()));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * Use of the tests defined below with the JUnit library is explicitly
+ * permitted.
+ */
+package de.staudtlex.csvtools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+public class IoExecutorsTest {
+
+  @Test
+  void testBackend() {
+    // set by the build: the tests run against target/classes (Java 8 classes)
+    // and, on JDK 21+, against the multi-release jar (Java 21 classes)
+    final String expected = System.getProperty("csvtools.expectVirtualThreads");
+    assumeTrue(expected != null);
+    assertEquals(Boolean.parseBoolean(expected),
+        IoExecutors.usesVirtualThreads());
+  }
+
+  @Test
+  void testNewIoExecutor() throws InterruptedException, ExecutionException {
+    final ExecutorService executor = IoExecutors.newIoExecutor(2);
+    try {
+      final List<Future<Boolean>> daemons = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        daemons.add(executor.submit(() -> Thread.currentThread().isDaemon()));
+      }
+      for (final Future<Boolean> daemon : daemons) {
+        assertTrue(daemon.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * Use of the tests defined below with the JUnit library is explicitly
+ * permitted.
+ */
+package de.staudtlex.csvtools;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PrefetchingInputStreamTest {
+  final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+
+  @TempDir
+  Path tempDir;
+
+  @AfterEach
+  private void shutdownExecutor() {
+    ioExecutor.shutdownNow();
+  }
+
+  private static byte[] readAll(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[5];
+    int n;
+    while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  void testReadChunks() throws IOException {
+    final Random random = new Random(1);
+    // empty, shorter than a chunk, a multiple of the chunk size, and longer
+    // than all chunks read ahead
+    for (final int size : new int[] {
+        0, 3, 14, 100
+    }) {
+      final byte[] content = new byte[size];
+      random.nextBytes(content);
+      final Path file = tempDir.resolve("file-" + size);
+      Files.write(file, content);
+      try (InputStream in = new PrefetchingInputStream(file, ioExecutor, 7,
+          2)) {
+        assertArrayEquals(content, readAll(in));
+        assertEquals(-1, in.read());
+      }
+    }
+  }
+
+  @Test
+  void testReadsOnExecutor() throws IOException {
+    final Path file = tempDir.resolve("file");
+    Files.write(file, new byte[] {
+        1, 2, 3
+    });
+    final ExecutorService executor = Executors.newSingleThreadExecutor(
+        r -> new Thread(r, "prefetch-test"));
+    try (InputStream in = new PrefetchingInputStream(file,
+        r -> executor.execute(() -> {
+          assertEquals("prefetch-test", Thread.currentThread().getName());
+          r.run();
+        }))) {
+      assertEquals(1, in.read());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void testMissingFile() {
+    final IOException e = assertThrows(IOException.class,
+        () -> readAll(new PrefetchingInputStream(tempDir.resolve("missing"),
+            ioExecutor)));
+    assertTrue(e instanceof NoSuchFileException);
+  }
+
+}
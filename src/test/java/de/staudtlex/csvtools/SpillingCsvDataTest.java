@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * Use of the tests defined below with the JUnit library is explicitly
+ * permitted.
+ */
+package de.staudtlex.csvtools;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.csv.CSVFormat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SpillingCsvDataTest {
+  private static final List<String> KEYS = Arrays.asList("id", "text");
+
+  final PrintStream originalOut = System.out;
+
+  @TempDir
+  Path tempDir;
+
+  @AfterEach
+  private void restoreStreams() {
+    System.setOut(originalOut);
+  }
+
+  private static List<LinkedHashMap<String, String>> batch(final int first,
+      final int rows) {
+    final List<LinkedHashMap<String, String>> records = new ArrayList<>();
+    for (int i = first; i < first + rows; i++) {
+      final LinkedHashMap<String, String> record = new LinkedHashMap<>();
+      record.put("id", String.valueOf(i));
+      record.put("text", i % 3 == 0 ? "" : "zeile " + i + ";\n\"äöü\"");
+      records.add(record);
+    }
+    return records;
+  }
+
+  @Test
+  void testReplayInOrder() throws IOException {
+    final List<Map<String, String>> expected = new ArrayList<>();
+    final Path spillDirectory;
+    try (SpillingCsvData data = new SpillingCsvData(KEYS, 4096)) {
+      for (int i = 0; i < 10; i++) {
+        final List<LinkedHashMap<String, String>> records = batch(i * 50, 50);
+        expected.addAll(records);
+        data.add(records);
+        assertTrue(data.getBufferedBytes() <= 4096);
+      }
+      data.add(new ArrayList<>());
+      assertEquals(500, data.getRowCount());
+      assertTrue(data.getSpilledBatchCount() > 0);
+      spillDirectory = data.getSpillDirectory();
+      assertTrue(Files.isDirectory(spillDirectory));
+
+      // replay twice, as output and columnar file are written one after another
+      for (int pass = 0; pass < 2; pass++) {
+        final List<Map<String, String>> actual = new ArrayList<>();
+        data.forEach(actual::add);
+        assertEquals(expected, actual);
+      }
+    }
+    assertFalse(Files.exists(spillDirectory));
+  }
+
+  @Test
+  void testWithinBudget() throws IOException {
+    try (SpillingCsvData data = new SpillingCsvData(KEYS, 1L << 30)) {
+      data.add(batch(0, 100));
+      assertEquals(0, data.getSpilledBatchCount());
+      assertNull(data.getSpillDirectory());
+      assertTrue(data.getBufferedBytes() > 0);
+    }
+    assertThrows(IllegalArgumentException.class,
+        () -> new SpillingCsvData(KEYS, -1));
+  }
+
+  /**
+   * Combining with a memory budget produces the same output as combining
+   * without.
+   */
+  @Test
+  void testCombineWithMaxMemory() throws IOException {
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(expected));
+    TestData.combine("gss-append*.csv");
+
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(actual));
+    TestData.combine("gss-append*.csv", "-m", "64k", "-c",
+        tempDir.resolve("combined.csvc").toString());
+
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    try (ColumnarCsv.Reader reader = new ColumnarCsv.Reader(
+        tempDir.resolve("combined.csvc"))) {
+      assertTrue(reader.getRowCount() > 0);
+    }
+  }
+
+  /**
+   * Without an index, output is encoded like {@code stdout}, whether or not a
+   * memory budget is set. UTF-16 differs from any platform default charset.
+   */
+  @Test
+  void testCombineWithMaxMemoryEncoding() throws IOException {
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(expected, true, "UTF-16BE"));
+    TestData.combine("multiline-part*.csv");
+
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(actual, true, "UTF-16BE"));
+    TestData.combine("multiline-part*.csv", "-m", "0");
+
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+  /**
+   * Combines files in a separate JVM with the specified maximum heap size. The
+   * class path is taken from the locations of the classes rather than from
+   * {@code java.class.path}, which test launchers need not set.
+   *
+   * @return the exit code
+   */
+  private static int combineInJvm(final String maxHeap, final Path output,
+      final List<String> args) throws IOException, InterruptedException {
+    final String classPath = Stream
+        .of(CombineCsv.class, CSVFormat.class, CommandLine.class).map(e -> {
+          try {
+            return Paths.get(e.getProtectionDomain().getCodeSource()
+                .getLocation().toURI()).toString();
+          } catch (final URISyntaxException ex) {
+            throw new RuntimeException(ex);
+          }
+        }).collect(Collectors.joining(File.pathSeparator));
+    final List<String> command = new ArrayList<>(Arrays.asList(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+        "-Xmx" + maxHeap, "-cp", classPath, CombineCsv.class.getName()));
+    command.addAll(args);
+    return new ProcessBuilder(command).redirectOutput(output.toFile())
+        .redirectError(output.resolveSibling(output.getFileName() + ".err")
+            .toFile())
+        .start().waitFor();
+  }
+
+  /**
+   * Within a memory budget, the combine needs far less heap than the records
+   * of all files: files are imported a window at a time, so the heap holds
+   * the budget and a single window of records.
+   */
+  @Test
+  void testCombineWithinHeapLimit() throws IOException, InterruptedException {
+    final List<String> files = new SyntheticCsvGenerator(3, 8, 32000, 20,
+        0.05, 0.2, 0.01).generate(tempDir.resolve("data")).stream()
+            .map(File::getAbsolutePath).collect(Collectors.toList());
+
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(expected));
+    CombineCsv.main(files.toArray(new String[0]));
+    System.setOut(originalOut);
+
+    final List<String> budgeted = new ArrayList<>(Arrays.asList("-m", "1m"));
+    budgeted.addAll(files);
+    final Path budgetedOutput = tempDir.resolve("budgeted.csv");
+    assertEquals(0, combineInJvm("32m", budgetedOutput, budgeted));
+    assertArrayEquals(expected.toByteArray(),
+        Files.readAllBytes(budgetedOutput));
+
+    // without a budget, the same heap does not suffice
+    assertTrue(combineInJvm("32m", tempDir.resolve("unbudgeted.csv"),
+        files) != 0);
+  }
+
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * Use of the tests defined below with the JUnit library is explicitly
+ * permitted.
+ */
+package de.staudtlex.csvtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * Generates deterministic synthetic CSV files for tests.
+ * <p>
+ * Each file starts with an {@code id} column holding the row's number across
+ * all files, followed by columns of a shared base schema. Depending on the
+ * settings, files drop, add, and reorder columns (schema drift), repeat column
+ * names (duplicate header names), and contain quoted values spanning several
+ * lines. The same settings always produce the same files.
+ */
+public class SyntheticCsvGenerator {
+  private static final CSVFormat FORMAT = CSVFormat.Builder.create()
+      .setDelimiter(';').setQuote('"').setRecordSeparator("\n").build();
+
+  private static final String[] WORDS = {
+      "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf",
+      "hotel", "india", "juliett", "kilo", "lima", "mike", "november",
+      "oscar", "papa"
+  };
+
+  private final long seed;
+  private final int files;
+  private final long rows;
+  private final int columns;
+  private final double duplicateRate;
+  private final double driftRate;
+  private final double multilineRate;
+
+  /**
+   * Creates a SyntheticCsvGenerator.
+   *
+   * @param seed          the seed of the random number generators
+   * @param files         the number of files
+   * @param rows          the total number of rows, spread evenly across files
+   * @param columns       the number of columns of the base schema, excluding
+   *                        the {@code id} column
+   * @param duplicateRate the probability of a column name being repeated
+   * @param driftRate     the probability of a file dropping a base column, as
+   *                        well as of adding and of swapping columns
+   * @param multilineRate the probability of a text value spanning several
+   *                        lines
+   * @throws IllegalArgumentException if {@code files} or {@code columns} is
+   *                                    less than 1 or {@code rows} is negative
+   */
+  public SyntheticCsvGenerator(final long seed, final int files,
+      final long rows, final int columns, final double duplicateRate,
+      final double driftRate, final double multilineRate) {
+    if (files < 1 || columns < 1 || rows < 0) {
+      throw new IllegalArgumentException(
+          "Invalid number of files, rows, or columns");
+    }
+    this.seed = seed;
+    this.files = files;
+    this.rows = rows;
+    this.columns = columns;
+    this.duplicateRate = duplicateRate;
+    this.driftRate = driftRate;
+    this.multilineRate = multilineRate;
+  }
+
+  /**
+   * @return a name identifying the settings, suitable as directory name
+   */
+  public String getName() {
+    return String.format(Locale.ROOT,
+        "seed%d-files%d-rows%d-cols%d-d%.3f-s%.3f-m%.3f", seed, files, rows,
+        columns, duplicateRate, driftRate, multilineRate);
+  }
+
+  /**
+   * @return the total number of rows
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  /**
+   * Returns the number of rows of a file.
+   *
+   * @param file the file's number
+   * @return the number of rows
+   */
+  long rowsInFile(final int file) {
+    return rows / files + (file < rows % files ? 1 : 0);
+  }
+
+  private long firstRow(final int file) {
+    return file * (rows / files) + Math.min(file, rows % files);
+  }
+
+  /**
+   * Generates the files in {@code dir}, named
+   * {@code synthetic-part00001.csv} and so forth.
+   *
+   * @param dir the output directory, which is created if necessary
+   * @return the generated files, in order
+   * @throws IOException if an I/O error occurs
+   */
+  public List<File> generate(final Path dir) throws IOException {
+    Files.createDirectories(dir);
+    try {
+      return IntStream.range(0, files).parallel().mapToObj(i -> {
+        final Path path = dir.resolve(
+            String.format(Locale.ROOT, "synthetic-part%05d.csv", i + 1));
+        try (Writer out = Files.newBufferedWriter(path,
+            StandardCharsets.UTF_8)) {
+          writeFile(i, firstRow(i), rowsInFile(i), out);
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        return path.toFile();
+      }).collect(Collectors.toList());
+    } catch (final UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Estimates the average size of a row in bytes, so that the number of rows
+   * can be chosen to produce a dataset of a given size.
+   *
+   * @return the estimated number of bytes per row
+   */
+  public double estimateBytesPerRow() {
+    // sample several files, as their headers differ
+    final int sampleFiles = Math.min(files, 10);
+    final int sampleRows = 500;
+    final StringBuilder sample = new StringBuilder();
+    try {
+      for (int i = 0; i < sampleFiles; i++) {
+        writeFile(i, 0, sampleRows, sample);
+      }
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return (double) BinaryIo.utf8Length(sample, 0, sample.length())
+        / (sampleFiles * sampleRows);
+  }
+
+  private void writeFile(final int file, final long firstRow,
+      final long rowCount, final Appendable out) throws IOException {
+    final Random random = new Random(seed * 1_000_003L + file);
+    final List<String> header = header(random);
+    final CSVPrinter printer = new CSVPrinter(out, FORMAT);
+    printer.printRecord(header);
+    final List<String> record = new ArrayList<>(header.size());
+    for (long row = firstRow; row < firstRow + rowCount; row++) {
+      record.clear();
+      record.add(String.valueOf(row));
+      for (int j = 1; j < header.size(); j++) {
+        record.add(value(header.get(j), random));
+      }
+      printer.printRecord(record);
+    }
+    printer.flush();
+  }
+
+  /**
+   * Creates a file's header from the base schema, applying schema drift and
+   * duplicate column names.
+   */
+  private List<String> header(final Random random) {
+    final List<String> names = new ArrayList<>();
+    for (int j = 1; j <= columns; j++) {
+      if (random.nextDouble() >= driftRate) {
+        names.add(String.format(Locale.ROOT, "col_%03d", j));
+      }
+    }
+    if (random.nextDouble() < driftRate) {
+      names.add(String.format(Locale.ROOT, "extra_%03d",
+          random.nextInt(columns) + 1));
+    }
+    if (names.size() > 1 && random.nextDouble() < driftRate) {
+      Collections.swap(names, random.nextInt(names.size()),
+          random.nextInt(names.size()));
+    }
+    final List<String> header = new ArrayList<>();
+    header.add("id");
+    for (final String name : names) {
+      header.add(name);
+      if (random.nextDouble() < duplicateRate) {
+        header.add(names.get(random.nextInt(names.size())));
+      }
+    }
+    return header;
+  }
+
+  /**
+   * Creates a random value whose kind (categorical, integer, decimal, or text)
+   * depends on the column name.
+   */
+  private String value(final String name, final Random random) {
+    if (random.nextInt(50) == 0) {
+      return "";
+    }
+    switch (Math.floorMod(name.hashCode(), 4)) {
+    case 0:
+      return WORDS[random.nextInt(WORDS.length)];
+    case 1:
+      return String.valueOf(random.nextInt(100000));
+    case 2:
+      return String.format(Locale.ROOT, "%.2f", random.nextDouble() * 1000);
+    default:
+      final StringBuilder text = new StringBuilder();
+      final int words = 2 + random.nextInt(5);
+      for (int k = 0; k < words; k++) {
+        if (k > 0) {
+          text.append(' ');
+        }
+        text.append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      if (random.nextDouble() < multilineRate) {
+        text.append(";\n\"").append(WORDS[random.nextInt(WORDS.length)])
+            .append("\",\r\n").append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      return text.toString();
+    }
+  }
+
+  /**
+   * Generates synthetic CSV files.
+   *
+   * @param args the options, see {@code --help}
+   */
+  public static void main(final String[] args) {
+    final Options options = new Options();
+    options.addOption("o", "output", true, "Output directory (required)");
+    options.addOption("s", "seed", true, "Random seed (default: 1)");
+    options.addOption("f", "files", true, "Number of files (default: 10)");
+    options.addOption("r", "rows", true,
+        "Total number of rows (default: 100000)");
+    options.addOption("c", "columns", true,
+        "Number of base columns (default: 20)");
+    options.addOption("d", "duplicates", true,
+        "Probability of a duplicated column name (default: 0.05)");
+    options.addOption("t", "drift", true,
+        "Probability of dropping, adding, or swapping columns per file (default: 0.2)");
+    options.addOption("m", "multiline", true,
+        "Probability of a multiline text value (default: 0.01)");
+    options.addOption("h", "help", false, "Display this help message");
+    final HelpFormatter formatter = new HelpFormatter();
+    final String cmdLineSyntax = "SyntheticCsvGenerator -o <dir> [options]";
+
+    try {
+      final CommandLine cmd = new DefaultParser().parse(options, args);
+      if (cmd.hasOption("h") || !cmd.hasOption("o")) {
+        formatter.printHelp(cmdLineSyntax, options);
+        System.exit(cmd.hasOption("h") ? 0 : 1);
+      }
+      final SyntheticCsvGenerator generator = new SyntheticCsvGenerator(
+          Long.parseLong(cmd.getOptionValue("s", "1")),
+          Integer.parseInt(cmd.getOptionValue("f", "10")),
+          Long.parseLong(cmd.getOptionValue("r", "100000")),
+          Integer.parseInt(cmd.getOptionValue("c", "20")),
+          Double.parseDouble(cmd.getOptionValue("d", "0.05")),
+          Double.parseDouble(cmd.getOptionValue("t", "0.2")),
+          Double.parseDouble(cmd.getOptionValue("m", "0.01")));
+      final List<File> generated = generator
+          .generate(Paths.get(cmd.getOptionValue("o")));
+      System.out.println("Generated " + generated.size() + " files with "
+          + generator.getRows() + " rows in " + cmd.getOptionValue("o"));
+    } catch (final ParseException | IllegalArgumentException e) {
+      System.err.println(
+          "Unable to parse command line options: " + e.getMessage() + "\n");
+      formatter.printHelp(cmdLineSyntax, options);
+      System.exit(1);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2021 Alexander Staudt
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * Use of the tests defined below with the JUnit library is explicitly
+ * permitted.
+ */
+package de.staudtlex.csvtools;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Provides access to the CSV files in {@code src/test/resources/csv}.
+ */
+final class TestData {
+  private static final String RESOURCE_PATH = "src/test/resources/csv/";
+
+  private TestData() {
+  }
+
+  /**
+   * Reads a reference file from {@code reference-data}.
+   *
+   * @param name the file name
+   * @return the records
+   * @throws IOException if an I/O error occurs
+   */
+  static List<Map<String, String>> readReference(final String name)
+      throws IOException {
+    final CSVFormat format = CSVFormat.Builder.create().setHeader()
+        .setSkipHeaderRecord(true).setDelimiter(';').setQuote('"').build();
+    try (
+        Reader reader = Files.newBufferedReader(
+            Paths.get(RESOURCE_PATH + "reference-data/" + name),
+            StandardCharsets.UTF_8);
+        CSVParser parser = new CSVParser(reader, format)) {
+      return parser.getRecords().stream().map(CSVRecord::toMap)
+          .collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Lists the files in {@code test-data} matching a glob, sorted by path.
+   *
+   * @param glob the glob, e.g. {@code gss-append*.csv}
+   * @return the absolute paths of the files
+   * @throws IOException if an I/O error occurs
+   */
+  static String[] findTestFiles(final String glob) throws IOException {
+    return CombineCsv.findFiles(RESOURCE_PATH + "test-data/" + glob).stream()
+        .map(e -> e.getAbsolutePath()).sorted().toArray(String[]::new);
+  }
+
+  /**
+   * Runs {@link CombineCsv#main(String[])} on the files in {@code test-data}
+   * matching a glob.
+   *
+   * @param glob    the glob, e.g. {@code gss-append*.csv}
+   * @param options the command line options preceding the files
+   * @throws IOException if an I/O error occurs listing the files
+   */
+  static void combine(final String glob, final String... options)
+      throws IOException {
+    final List<String> args = new ArrayList<>(Arrays.asList(options));
+    args.addAll(Arrays.asList(findTestFiles(glob)));
+    CombineCsv.main(args.toArray(new String[0]));
+  }
+
+}